@@ -0,0 +1,416 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.davidmoten.geo.Base32;
+import com.github.davidmoten.geo.Coverage;
+import com.github.davidmoten.geo.GeoHash;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Stores records with time and position in a tree over the characters of
+ * their geohashes that adapts to the density of the data. A node holds its
+ * records directly (in time order) until it has more than splitThreshold
+ * records and only then splits into 32 children, one per next geohash
+ * character. Each record is held once, so memory grows with the number of
+ * records rather than with the number of records times the geohash length
+ * as for {@link Geomem}, and dense areas are divided more finely than sparse
+ * ones.
+ * 
+ * <p>
+ * The latest record of each id is also held in a second tree of the same
+ * kind so that the latest positions within a box are found without scanning
+ * every record, and the records of each id are held in time order for tracks.
+ * 
+ * <p>
+ * This is a narrower store than {@link Geomem} and is not selected through
+ * {@link Geomem.Builder}: it supports adds, bounding box and time queries,
+ * tracks and latest positions by id only. Upsert mode, the write ahead log,
+ * metrics, memory budgets, eviction, compaction, snapshots, subscriptions and
+ * aggregates are not supported. Nodes are never merged once split.
+ * 
+ * <p>
+ * Adds lock only the leaves they add to (and the id for the latest record).
+ * Queries take no locks.
+ * 
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+public final class AdaptiveGeomem<T, R> {
+
+    private static final int DEFAULT_SPLIT_THRESHOLD = 1024;
+
+    private final int splitThreshold;
+    private final Node<T, R> root = new Node<T, R>(0);
+
+    /**
+     * Tree of the latest (by time) record of each id.
+     */
+    private final Node<T, R> latestRoot = new Node<T, R>(0);
+
+    /**
+     * Maps from id to the latest record of the id with its key in latestRoot.
+     * Updated only while holding the lock of the id in idIndex.
+     */
+    private final ConcurrentMap<R, Entry<Key, Info<T, R>>> latestById = Maps
+            .newConcurrentMap();
+
+    private final IdIndex<T, R> idIndex = new IdIndex<T, R>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Constructor. Nodes split when they have more than 1024 records.
+     */
+    public AdaptiveGeomem() {
+        this(DEFAULT_SPLIT_THRESHOLD);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param splitThreshold
+     *            number of records above which a node splits into 32 children
+     */
+    public AdaptiveGeomem(int splitThreshold) {
+        Preconditions.checkArgument(splitThreshold > 0, "splitThreshold must be positive");
+        this.splitThreshold = splitThreshold;
+    }
+
+    /**
+     * Adds a record with the given position, time and id.
+     * 
+     * @param lat
+     *            latitude
+     * @param lon
+     *            longitude
+     * @param time
+     *            time in epoch ms
+     * @param t
+     *            object
+     * @param id
+     *            identifier
+     */
+    public void add(double lat, double lon, long time, T t, R id) {
+        add(new Info<T, R>(lat, lon, time, t, Optional.of(id)));
+    }
+
+    /**
+     * Adds a record.
+     * 
+     * @param info
+     *            record to add
+     */
+    public void add(Info<T, R> info) {
+        long hash = Geomem.hash(info.lat(), info.lon());
+        Key key = new Key(info.time(), sequence.getAndIncrement());
+        insert(root, key, info, hash);
+        if (info.id().isPresent()) {
+            R id = info.id().get();
+            idIndex.add(id, key, info);
+            updateLatest(id, key, info, hash);
+        }
+    }
+
+    /**
+     * Makes info the latest record of its id unless the id has a later
+     * record. The new record is added to the latest tree before the previous
+     * one is removed so that concurrent queries do not miss the id.
+     */
+    private void updateLatest(R id, Key key, Info<T, R> info, long hash) {
+        ReentrantLock lock = idIndex.lockId(id);
+        try {
+            Entry<Key, Info<T, R>> previous = latestById.get(id);
+            if (previous != null && previous.getValue().time() > info.time())
+                return;
+            insert(latestRoot, key, info, hash);
+            if (previous != null) {
+                Info<T, R> p = previous.getValue();
+                remove(latestRoot, previous.getKey(), Geomem.hash(p.lat(), p.lon()));
+            }
+            latestById.put(id, Maps.immutableEntry(key, info));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void insert(Node<T, R> root, Key key, Info<T, R> info, long hash) {
+        Node<T, R> node = root;
+        while (true) {
+            synchronized (node) {
+                if (node.children == null) {
+                    if (node.records == null)
+                        node.records = new ConcurrentSkipListMap<Key, Info<T, R>>();
+                    node.records.put(key, info);
+                    node.count++;
+                    if (node.count > splitThreshold)
+                        node.split(splitThreshold);
+                    return;
+                }
+            }
+            node = node.children[node.childIndex(hash)];
+        }
+    }
+
+    private static <T, R> void remove(Node<T, R> root, Key key, long hash) {
+        Node<T, R> node = root;
+        while (true) {
+            synchronized (node) {
+                if (node.children == null) {
+                    if (node.records != null && node.records.remove(key) != null)
+                        node.count--;
+                    return;
+                }
+            }
+            node = node.children[node.childIndex(hash)];
+        }
+    }
+
+    /**
+     * Adds all the records.
+     * 
+     * @param infos
+     *            records to add
+     */
+    public void addAll(Iterable<Info<T, R>> infos) {
+        for (Info<T, R> info : infos)
+            add(info);
+    }
+
+    /**
+     * Returns as an {@link Iterable} the results of a search within the
+     * bounding box given and where start &lt;=time &lt; finish. Each leaf
+     * overlapping the covering geohashes is searched once.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records
+     */
+    public Iterable<Info<T, R>> find(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish) {
+        List<Iterable<Info<T, R>>> list = Lists.newArrayList();
+        for (ConcurrentSkipListMap<Key, Info<T, R>> records : leaves(root, topLeftLat,
+                topLeftLon, bottomRightLat, bottomRightLon))
+            list.add(records.subMap(Key.first(start), Key.first(finish)).values());
+        return Iterables.filter(Iterables.concat(list), Geomem.<T, R> regionFilter(
+                topLeftLat, topLeftLon, bottomRightLat, bottomRightLon));
+    }
+
+    /**
+     * Returns as an {@link Iterable} the latest record (by time) of each id
+     * whose latest position is within the bounding box given. Records added
+     * without an id are not included. Only the tree of latest records is
+     * searched.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @return latest info records
+     */
+    public Iterable<Info<T, R>> findLatest(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon) {
+        List<Iterable<Info<T, R>>> list = Lists.newArrayList();
+        for (ConcurrentSkipListMap<Key, Info<T, R>> records : leaves(latestRoot, topLeftLat,
+                topLeftLon, bottomRightLat, bottomRightLon))
+            list.add(records.values());
+        return Iterables.filter(Iterables.concat(list), Geomem.<T, R> regionFilter(
+                topLeftLat, topLeftLon, bottomRightLat, bottomRightLon));
+    }
+
+    /**
+     * Returns the latest record (by time) of the given id.
+     * 
+     * @param id
+     *            identifier
+     * @return latest record if the id has one
+     */
+    public Optional<Info<T, R>> findLatest(R id) {
+        Entry<Key, Info<T, R>> latest = latestById.get(id);
+        return latest == null ? Optional.<Info<T, R>> absent() : Optional.of(latest.getValue());
+    }
+
+    /**
+     * Returns the track of the given id being its records where start &lt;=
+     * time &lt; finish in time order.
+     * 
+     * @param id
+     *            identifier
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records in time order
+     */
+    public List<Info<T, R>> findTrack(R id, long start, long finish) {
+        return idIndex.find(id, start, finish);
+    }
+
+    /**
+     * Returns the records of the leaves of the tree overlapping the covering
+     * geohashes of the box, each leaf once.
+     */
+    private static <T, R> Collection<ConcurrentSkipListMap<Key, Info<T, R>>> leaves(
+            Node<T, R> root, double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon) {
+        Coverage cover = Geomem.cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        // keyed by node (identity) so a leaf covering several hashes is
+        // searched once
+        Map<Node<T, R>, ConcurrentSkipListMap<Key, Info<T, R>>> leaves = Maps.newLinkedHashMap();
+        for (String hash : cover.getHashes())
+            addLeaves(leaves, root, hash);
+        return leaves.values();
+    }
+
+    /**
+     * Returns the number of leaves of the tree.
+     * 
+     * @return number of leaves
+     */
+    int leafCount() {
+        return leafCount(root);
+    }
+
+    private static int leafCount(Node<?, ?> node) {
+        Node<?, ?>[] children = node.children;
+        if (children == null)
+            return 1;
+        int count = 0;
+        for (Node<?, ?> child : children)
+            count += leafCount(child);
+        return count;
+    }
+
+    /**
+     * Adds the records of the leaves that hold the records with the given
+     * geohash prefix.
+     */
+    private static <T, R> void addLeaves(
+            Map<Node<T, R>, ConcurrentSkipListMap<Key, Info<T, R>>> leaves, Node<T, R> root,
+            String hash) {
+        long full = Base32.decodeBase32(hash);
+        Node<T, R> node = root;
+        for (int i = 0; i < hash.length(); i++) {
+            ConcurrentSkipListMap<Key, Info<T, R>> records = node.records;
+            if (records != null) {
+                // leaf holds records with a shorter prefix of the hash
+                leaves.put(node, records);
+                return;
+            }
+            Node<T, R>[] children = node.children;
+            if (children == null)
+                // empty leaf
+                return;
+            node = children[(int) (full >>> (5 * (hash.length() - i - 1))) & 31];
+        }
+        addLeaves(leaves, node);
+    }
+
+    /**
+     * Adds the records of the leaves under the node. The records of a node
+     * are read before its children: split publishes the children before it
+     * drops the records, so a node without records that has no children is an
+     * empty leaf and the records map read from a leaf that splits afterwards
+     * still holds every record it had.
+     */
+    private static <T, R> void addLeaves(
+            Map<Node<T, R>, ConcurrentSkipListMap<Key, Info<T, R>>> leaves, Node<T, R> node) {
+        ConcurrentSkipListMap<Key, Info<T, R>> records = node.records;
+        if (records != null) {
+            leaves.put(node, records);
+            return;
+        }
+        Node<T, R>[] children = node.children;
+        if (children != null)
+            for (Node<T, R> child : children)
+                addLeaves(leaves, child);
+    }
+
+    private static final class Node<T, R> {
+
+        /**
+         * Length of the geohash prefix shared by the records of this node.
+         */
+        final int depth;
+
+        /**
+         * Records in key order, null until the first record is added and once
+         * the node has split.
+         */
+        volatile ConcurrentSkipListMap<Key, Info<T, R>> records;
+
+        /**
+         * Children by next geohash character, null until the node splits.
+         */
+        volatile Node<T, R>[] children;
+
+        /**
+         * Number of records. Guarded by this.
+         */
+        int count;
+
+        Node(int depth) {
+            this.depth = depth;
+        }
+
+        int childIndex(long hash) {
+            return (int) (hash >>> (5 * (GeoHash.MAX_HASH_LENGTH - depth - 1))) & 31;
+        }
+
+        /**
+         * Moves the records to 32 new children, splitting the children too if
+         * the records share the next character. Only children that receive
+         * records get a records map. The children are published before the
+         * records are dropped so that a concurrent query sees all records
+         * through one or the other. Must hold the lock on this.
+         */
+        void split(int splitThreshold) {
+            if (depth == GeoHash.MAX_HASH_LENGTH)
+                return;
+            @SuppressWarnings("unchecked")
+            Node<T, R>[] c = (Node<T, R>[]) new Node<?, ?>[32];
+            for (int i = 0; i < c.length; i++)
+                c[i] = new Node<T, R>(depth + 1);
+            for (Entry<Key, Info<T, R>> entry : records.entrySet()) {
+                Info<T, R> info = entry.getValue();
+                Node<T, R> child = c[childIndex(Geomem.hash(info.lat(), info.lon()))];
+                if (child.records == null)
+                    child.records = new ConcurrentSkipListMap<Key, Info<T, R>>();
+                child.records.put(entry.getKey(), info);
+                child.count++;
+            }
+            for (Node<T, R> child : c)
+                if (child.count > splitThreshold)
+                    child.split(splitThreshold);
+            children = c;
+            records = null;
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.github.davidmoten.geo.GeoHash;
+
+/**
+ * Sorting of record indexes by primitive columns used to build the
+ * {@link Geomem} index bottom-up from a batch of records. Ties are broken by
+ * index so that records keep their input order.
+ */
+final class BulkSort {
+
+    /**
+     * Ranges smaller than this are sorted on the calling thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    private BulkSort() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns the indexes 0..n-1 sorted by hash then time then index. Large
+     * inputs are sorted in parallel on the common {@link ForkJoinPool}.
+     *
+     * @param hashes
+     *            full length geohashes
+     * @param times
+     *            times
+     * @return sorted indexes
+     */
+    static int[] sortByHashThenTime(long[] hashes, long[] times) {
+        int n = hashes.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        int[] buffer = new int[n];
+        ForkJoinPool.commonPool().invoke(new SortTask(hashes, times, order, buffer, 0, n));
+        return order;
+    }
+
+    /**
+     * Given order where each range of equal hash prefix of length
+     * prefixLength + 1 is sorted by time then index, sorts each range of equal
+     * hash prefix of length prefixLength by time then index by merging the
+     * ranges it contains.
+     *
+     * @param order
+     *            indexes sorted by hash
+     * @param hashes
+     *            full length geohashes
+     * @param times
+     *            times
+     * @param prefixLength
+     *            length of the prefix of the ranges to sort
+     */
+    static void mergeWithinPrefixes(int[] order, long[] hashes, long[] times,
+            int prefixLength) {
+        int n = order.length;
+        int[] buffer = new int[n];
+        int childShift = 5 * (GeoHash.MAX_HASH_LENGTH - prefixLength - 1);
+        int parentShift = childShift + 5;
+        int start = 0;
+        while (start < n) {
+            long parent = hashes[order[start]] >>> parentShift;
+            int finish = start;
+            while (finish < n && hashes[order[finish]] >>> parentShift == parent)
+                finish++;
+            mergeRuns(order, buffer, hashes, times, start, finish, childShift);
+            start = finish;
+        }
+    }
+
+    /**
+     * Merges the runs of equal hash prefix (each sorted by time) in
+     * order[start..finish) into one run sorted by time.
+     */
+    private static void mergeRuns(int[] order, int[] buffer, long[] hashes, long[] times,
+            int start, int finish, int childShift) {
+        // boundaries of the runs
+        int[] bounds = new int[33];
+        int runs = 0;
+        bounds[0] = start;
+        for (int i = start + 1; i < finish; i++) {
+            if (hashes[order[i]] >>> childShift != hashes[order[i - 1]] >>> childShift)
+                bounds[++runs] = i;
+        }
+        bounds[++runs] = finish;
+        while (runs > 1) {
+            int merged = 0;
+            for (int r = 0; r < runs; r += 2) {
+                if (r + 1 < runs)
+                    mergeByTime(order, buffer, times, bounds[r], bounds[r + 1], bounds[r + 2]);
+                bounds[merged++] = bounds[r];
+            }
+            bounds[merged] = finish;
+            runs = merged;
+        }
+    }
+
+    private static void mergeByTime(int[] order, int[] buffer, long[] times, int start,
+            int mid, int finish) {
+        System.arraycopy(order, start, buffer, start, finish - start);
+        int i = start;
+        int j = mid;
+        int k = start;
+        while (i < mid && j < finish) {
+            int a = buffer[i];
+            int b = buffer[j];
+            if (times[b] < times[a] || (times[b] == times[a] && b < a)) {
+                order[k++] = b;
+                j++;
+            } else {
+                order[k++] = a;
+                i++;
+            }
+        }
+        while (i < mid)
+            order[k++] = buffer[i++];
+        while (j < finish)
+            order[k++] = buffer[j++];
+    }
+
+    private static final class SortTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long[] hashes;
+        private final long[] times;
+        private final int[] order;
+        private final int[] buffer;
+        private final int start;
+        private final int finish;
+
+        SortTask(long[] hashes, long[] times, int[] order, int[] buffer, int start,
+                int finish) {
+            this.hashes = hashes;
+            this.times = times;
+            this.order = order;
+            this.buffer = buffer;
+            this.start = start;
+            this.finish = finish;
+        }
+
+        @Override
+        protected void compute() {
+            if (finish - start <= PARALLEL_THRESHOLD) {
+                sort(start, finish);
+            } else {
+                int mid = (start + finish) >>> 1;
+                invokeAll(new SortTask(hashes, times, order, buffer, start, mid),
+                        new SortTask(hashes, times, order, buffer, mid, finish));
+                merge(start, mid, finish);
+            }
+        }
+
+        private void sort(int from, int to) {
+            if (to - from < 16) {
+                // insertion sort
+                for (int i = from + 1; i < to; i++) {
+                    int x = order[i];
+                    int j = i - 1;
+                    while (j >= from && less(x, order[j])) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = x;
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                sort(from, mid);
+                sort(mid, to);
+                merge(from, mid, to);
+            }
+        }
+
+        private void merge(int from, int mid, int to) {
+            if (!less(order[mid], order[mid - 1]))
+                return;
+            System.arraycopy(order, from, buffer, from, to - from);
+            int i = from;
+            int j = mid;
+            int k = from;
+            while (i < mid && j < to) {
+                if (less(buffer[j], buffer[i]))
+                    order[k++] = buffer[j++];
+                else
+                    order[k++] = buffer[i++];
+            }
+            while (i < mid)
+                order[k++] = buffer[i++];
+            while (j < to)
+                order[k++] = buffer[j++];
+        }
+
+        private boolean less(int a, int b) {
+            if (hashes[a] != hashes[b])
+                return hashes[a] < hashes[b];
+            else if (times[a] != times[b])
+                return times[a] < times[b];
+            else
+                return a < b;
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * The number of records in a geohash cell together with the minimum and
+ * maximum times of those records.
+ */
+public final class CellCount {
+
+    private final String hash;
+    private final long count;
+    private final long minTime;
+    private final long maxTime;
+
+    public CellCount(String hash, long count, long minTime, long maxTime) {
+        this.hash = hash;
+        this.count = count;
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+    }
+
+    public String hash() {
+        return hash;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long minTime() {
+        return minTime;
+    }
+
+    public long maxTime() {
+        return maxTime;
+    }
+
+    @Override
+    public String toString() {
+        return "CellCount [hash=" + hash + ", count=" + count + ", minTime=" + minTime
+                + ", maxTime=" + maxTime + "]";
+    }
+
+}
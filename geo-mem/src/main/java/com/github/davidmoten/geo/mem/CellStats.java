@@ -0,0 +1,73 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the records added to a geohash cell, maintained on insert so
+ * that aggregate queries can answer for whole cells without scanning them.
+ * The minimum and maximum times are bounds: they are not tightened when
+ * records are removed.
+ */
+final class CellStats {
+
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong minTime = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxTime = new AtomicLong(Long.MIN_VALUE);
+
+    void add(long time) {
+        add(1, time, time);
+    }
+
+    /**
+     * Records the addition of a number of records with times between
+     * earliest and latest inclusive.
+     *
+     * @param n
+     *            number of records
+     * @param earliest
+     *            minimum time of the records
+     * @param latest
+     *            maximum time of the records
+     */
+    void add(long n, long earliest, long latest) {
+        count.add(n);
+        long min = minTime.get();
+        while (earliest < min && !minTime.compareAndSet(min, earliest))
+            min = minTime.get();
+        long max = maxTime.get();
+        while (latest > max && !maxTime.compareAndSet(max, latest))
+            max = maxTime.get();
+    }
+
+    void remove() {
+        count.decrement();
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long minTime() {
+        return minTime.get();
+    }
+
+    long maxTime() {
+        return maxTime.get();
+    }
+
+    /**
+     * Returns true if and only if all records in the cell have start &lt;=
+     * time &lt; finish.
+     *
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return true if all records are in the time range
+     */
+    boolean within(long start, long finish) {
+        return minTime.get() >= start && maxTime.get() < finish;
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.github.davidmoten.geo.Base32;
+import com.github.davidmoten.geo.GeoHash;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Records held as parallel arrays sorted by geohash cell and then by time and
+ * sequence. The cells are the geohashes of length cellLength that prefix the
+ * full length geohashes of the records, so with a cellLength of
+ * {@link GeoHash#MAX_HASH_LENGTH} the records are sorted by full length
+ * geohash and then time.
+ *
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+final class Columns<T, R> {
+
+    /**
+     * Average number of records per cell below which
+     * {@link #fromCells(Iterable)} uses shorter cells.
+     */
+    static final int MIN_CELL_RECORDS = 64;
+
+    final int cellLength;
+
+    /**
+     * Full length geohashes decoded by {@link Base32#decodeBase32(String)}.
+     */
+    final long[] hashes;
+    final long[] times;
+    final double[] lats;
+    final double[] lons;
+    final Object[] values;
+
+    /**
+     * Ids, null where absent.
+     */
+    final Object[] ids;
+
+    private Columns(int cellLength, long[] hashes, long[] times, double[] lats, double[] lons,
+            Object[] values, Object[] ids) {
+        this.cellLength = cellLength;
+        this.hashes = hashes;
+        this.times = times;
+        this.lats = lats;
+        this.lons = lons;
+        this.values = values;
+        this.ids = ids;
+    }
+
+    /**
+     * Returns the columns for the given records sorted by full length geohash
+     * then key.
+     *
+     * @param entries
+     *            records with their keys
+     * @return sorted columns
+     */
+    static <T, R> Columns<T, R> from(Iterable<Entry<Key, Info<T, R>>> entries) {
+        return create(GeoHash.MAX_HASH_LENGTH, sortedRows(entries));
+    }
+
+    /**
+     * Returns the columns for the given records sorted by cell then key, where
+     * the cell length is the longest for which the cells hold on average at
+     * least {@link #MIN_CELL_RECORDS} records (and at least 1). The records of
+     * a cell are then in time order.
+     *
+     * @param entries
+     *            records with their keys
+     * @return sorted columns
+     */
+    static <T, R> Columns<T, R> fromCells(Iterable<Entry<Key, Info<T, R>>> entries) {
+        Row<T, R>[] rows = sortedRows(entries);
+        int cellLength = cellLength(rows);
+        int shift = shift(cellLength);
+        Comparator<Row<T, R>> byKey = new Comparator<Row<T, R>>() {
+            @Override
+            public int compare(Row<T, R> a, Row<T, R> b) {
+                return a.key.compareTo(b.key);
+            }
+        };
+        int start = 0;
+        for (int i = 1; i <= rows.length; i++) {
+            if (i == rows.length || rows[i].hash >>> shift != rows[start].hash >>> shift) {
+                Arrays.sort(rows, start, i, byKey);
+                start = i;
+            }
+        }
+        return create(cellLength, rows);
+    }
+
+    /**
+     * Returns the number of bits a full length geohash is shifted right to
+     * give its prefix of the given length.
+     */
+    static int shift(int length) {
+        return 5 * (GeoHash.MAX_HASH_LENGTH - length);
+    }
+
+    private static <T, R> Row<T, R>[] sortedRows(Iterable<Entry<Key, Info<T, R>>> entries) {
+        List<Row<T, R>> list = Lists.newArrayList();
+        for (Entry<Key, Info<T, R>> entry : entries) {
+            Info<T, R> info = entry.getValue();
+            list.add(new Row<T, R>(Geomem.hash(info.lat(), info.lon()), entry.getKey(), info));
+        }
+        @SuppressWarnings("unchecked")
+        Row<T, R>[] rows = list.toArray((Row<T, R>[]) new Row<?, ?>[list.size()]);
+        Arrays.parallelSort(rows, new Comparator<Row<T, R>>() {
+            @Override
+            public int compare(Row<T, R> a, Row<T, R> b) {
+                int c = Long.compare(a.hash, b.hash);
+                return c != 0 ? c : a.key.compareTo(b.key);
+            }
+        });
+        return rows;
+    }
+
+    /**
+     * Returns the cell length for the rows sorted by hash, counting the
+     * distinct prefixes of each length from the length of the common prefix
+     * of neighbouring hashes.
+     */
+    private static int cellLength(Row<?, ?>[] rows) {
+        // distinct[i] is the number of distinct prefixes of length i
+        int[] distinct = new int[GeoHash.MAX_HASH_LENGTH + 1];
+        if (rows.length > 0)
+            distinct[1] = 1;
+        for (int i = 1; i < rows.length; i++) {
+            long x = rows[i - 1].hash ^ rows[i].hash;
+            if (x != 0) {
+                // the decoded hash uses the low 60 bits
+                int common = (Long.numberOfLeadingZeros(x) - 4) / 5;
+                distinct[common + 1]++;
+            }
+        }
+        int cellLength = 1;
+        for (int i = 1; i <= GeoHash.MAX_HASH_LENGTH; i++) {
+            if (i > 1)
+                distinct[i] += distinct[i - 1];
+            if ((long) distinct[i] * MIN_CELL_RECORDS <= rows.length)
+                cellLength = i;
+        }
+        return cellLength;
+    }
+
+    private static <T, R> Columns<T, R> create(int cellLength, Row<T, R>[] rows) {
+        int n = rows.length;
+        long[] hashes = new long[n];
+        long[] times = new long[n];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        Object[] values = new Object[n];
+        Object[] ids = new Object[n];
+        for (int i = 0; i < n; i++) {
+            Row<T, R> row = rows[i];
+            hashes[i] = row.hash;
+            times[i] = row.info.time();
+            lats[i] = row.info.lat();
+            lons[i] = row.info.lon();
+            values[i] = row.info.value();
+            ids[i] = row.info.id().orNull();
+        }
+        return new Columns<T, R>(cellLength, hashes, times, lats, lons, values, ids);
+    }
+
+    int size() {
+        return hashes.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    T value(int i) {
+        return (T) values[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    Optional<R> id(int i) {
+        return Optional.fromNullable((R) ids[i]);
+    }
+
+    Info<T, R> info(int i) {
+        return new Info<T, R>(lats[i], lons[i], times[i], value(i), id(i));
+    }
+
+    private static final class Row<T, R> {
+        final long hash;
+        final Key key;
+        final Info<T, R> info;
+
+        Row(long hash, Key key, Info<T, R> info) {
+            this.hash = hash;
+            this.key = key;
+            this.info = info;
+        }
+    }
+}
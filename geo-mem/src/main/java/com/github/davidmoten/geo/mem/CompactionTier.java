@@ -0,0 +1,51 @@
+package com.github.davidmoten.geo.mem;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A rule for thinning old records: records of an id older than minAgeMs are
+ * reduced to at most one per intervalMs (the earliest in each interval).
+ */
+public final class CompactionTier {
+
+    private final long minAgeMs;
+    private final long intervalMs;
+
+    public CompactionTier(long minAgeMs, long intervalMs) {
+        Preconditions.checkArgument(minAgeMs >= 0, "minAgeMs cannot be negative");
+        Preconditions.checkArgument(intervalMs > 0, "intervalMs must be positive");
+        this.minAgeMs = minAgeMs;
+        this.intervalMs = intervalMs;
+    }
+
+    public long minAgeMs() {
+        return minAgeMs;
+    }
+
+    public long intervalMs() {
+        return intervalMs;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(minAgeMs) + Long.hashCode(intervalMs);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        else if (!(o instanceof CompactionTier))
+            return false;
+        else {
+            CompactionTier t = (CompactionTier) o;
+            return minAgeMs == t.minAgeMs && intervalMs == t.intervalMs;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompactionTier [minAgeMs=" + minAgeMs + ", intervalMs=" + intervalMs + "]";
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Great circle distance calculations on a spherical earth.
+ */
+final class Distance {
+
+    /**
+     * Mean radius of the earth in metres.
+     */
+    static final double EARTH_RADIUS_METRES = 6371010;
+
+    private Distance() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns the great circle distance in metres between two points using
+     * the haversine formula.
+     *
+     * @param lat1
+     *            latitude of first point
+     * @param lon1
+     *            longitude of first point
+     * @param lat2
+     *            latitude of second point
+     * @param lon2
+     *            longitude of second point
+     * @return distance in metres
+     */
+    static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double sinDLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinDLat * sinDLat + Math.cos(Math.toRadians(lat1))
+                * Math.cos(Math.toRadians(lat2)) * sinDLon * sinDLon;
+        return 2 * EARTH_RADIUS_METRES * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns a lower bound for the great circle distance in metres between
+     * two points using only the difference in latitude. No trigonometric
+     * functions are called.
+     *
+     * @param lat1
+     *            latitude of first point
+     * @param lat2
+     *            latitude of second point
+     * @return lower bound for distance in metres
+     */
+    static double latitudeDistance(double lat1, double lat2) {
+        return Math.toRadians(Math.abs(lat2 - lat1)) * EARTH_RADIUS_METRES;
+    }
+
+    /**
+     * Returns the square of the equirectangular distance in metres between
+     * two points, where the longitude difference is scaled by the given cosine
+     * of latitude. When cosLat is the cosine of the latitude furthest from the
+     * equator of a region containing both points this does not exceed the
+     * great circle distance except by rounding, so it can reject points
+     * before {@link #haversine(double, double, double, double)} is called.
+     * Only the square root is avoided and no trigonometric functions are
+     * called.
+     *
+     * @param lat1
+     *            latitude of first point
+     * @param lon1
+     *            longitude of first point
+     * @param lat2
+     *            latitude of second point
+     * @param lon2
+     *            longitude of second point
+     * @param cosLat
+     *            cosine of the latitude used to scale the longitude difference
+     * @return square of the distance in metres
+     */
+    static double equirectangularSquared(double lat1, double lon1, double lat2, double lon2,
+            double cosLat) {
+        double deltaLon = Math.abs(lon2 - lon1);
+        if (deltaLon > 180)
+            deltaLon = 360 - deltaLon;
+        double dx = Math.toRadians(deltaLon) * cosLat * EARTH_RADIUS_METRES;
+        double dy = Math.toRadians(lat2 - lat1) * EARTH_RADIUS_METRES;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Returns a lower bound for the distance in metres from a point to any
+     * point outside of the given latitude band and longitude range (which
+     * contains the point).
+     *
+     * @param lat
+     *            latitude of point
+     * @param lon
+     *            longitude of point
+     * @param minLat
+     *            minimum latitude of region
+     * @param maxLat
+     *            maximum latitude of region
+     * @param minLon
+     *            minimum longitude of region
+     * @param maxLon
+     *            maximum longitude of region (may be greater than 180)
+     * @return lower bound in metres, {@link Double#MAX_VALUE} if the region is
+     *         the whole world
+     */
+    static double toOutside(double lat, double lon, double minLat, double maxLat,
+            double minLon, double maxLon) {
+        double d = Double.MAX_VALUE;
+        if (maxLat < 90)
+            d = Math.min(d, latitudeDistance(lat, maxLat));
+        if (minLat > -90)
+            d = Math.min(d, latitudeDistance(lat, minLat));
+        if (maxLon - minLon < 360) {
+            d = Math.min(d, toMeridian(lat, maxLon - lon));
+            d = Math.min(d, toMeridian(lat, lon - minLon));
+        }
+        return d;
+    }
+
+    /**
+     * Returns the distance in metres from a point to the great circle through
+     * the poles at the given longitude difference from the point. This is a
+     * lower bound for the distance to any point on that meridian.
+     *
+     * @param lat
+     *            latitude of point
+     * @param deltaLon
+     *            longitude difference in degrees
+     * @return distance in metres
+     */
+    private static double toMeridian(double lat, double deltaLon) {
+        return EARTH_RADIUS_METRES * Math.asin(Math.min(1,
+                Math.cos(Math.toRadians(lat)) * Math.abs(Math.sin(Math.toRadians(deltaLon)))));
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Emits JDK Flight Recorder events for {@link Geomem} adds and queries. This
+ * Java 8 version does nothing. On Java 11 and later the version in
+ * META-INF/versions/11 of the multi-release jar is used instead, which emits
+ * the events when they are enabled in a recording.
+ */
+final class FlightRecorderEvents {
+
+    private FlightRecorderEvents() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns true if query events are being recorded, in which case queries
+     * count the records they scan.
+     * 
+     * @return true if query events are enabled
+     */
+    static boolean queryEnabled() {
+        return false;
+    }
+
+    /**
+     * Starts timing a query.
+     * 
+     * @return event to commit or null if the event is disabled
+     */
+    static Object beginQuery() {
+        return null;
+    }
+
+    /**
+     * Commits the event started by {@link #beginQuery()}.
+     * 
+     * @param event
+     *            event returned by {@link #beginQuery()}
+     * @param query
+     *            the query
+     * @param scanned
+     *            number of records tested by the region filter
+     * @param returned
+     *            number of records returned
+     */
+    static void commitQuery(Object event, QueryMeter query, long scanned, long returned) {
+        // do nothing
+    }
+
+    /**
+     * Starts timing an add or batch add.
+     * 
+     * @return event to commit or null if the event is disabled
+     */
+    static Object beginAdd() {
+        return null;
+    }
+
+    /**
+     * Commits the event started by {@link #beginAdd()}.
+     * 
+     * @param event
+     *            event returned by {@link #beginAdd()}
+     * @param records
+     *            number of records added
+     */
+    static void commitAdd(Object event, int records) {
+        // do nothing
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import com.github.davidmoten.geo.Base32;
+import com.github.davidmoten.geo.Coverage;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * An immutable read-optimised copy of the records of a {@link Geomem} (or of
+ * a time partition of it) created by {@link Geomem#freeze()}. Records are held
+ * in primitive arrays grouped by geohash cell, with the records of each cell
+ * in time order. The cell length is chosen when frozen so that cells hold
+ * tens of records or more on average. A query finds the cells of each
+ * covering geohash and the records of each cell in the time range with binary
+ * searches and scans only those. Instances are safe to share between threads
+ * without synchronization.
+ * 
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+public final class FrozenGeomem<T, R> {
+
+    private final Columns<T, R> columns;
+
+    /**
+     * Distinct cells (geohash prefixes of length columns.cellLength of the
+     * records) in ascending order.
+     */
+    private final long[] cells;
+
+    /**
+     * The records of cells[i] have indexes cellStarts[i] to cellStarts[i + 1]
+     * exclusive.
+     */
+    private final int[] cellStarts;
+
+    FrozenGeomem(Columns<T, R> columns) {
+        this.columns = columns;
+        int shift = Columns.shift(columns.cellLength);
+        long[] hashes = columns.hashes;
+        int count = 0;
+        for (int i = 0; i < hashes.length; i++)
+            if (i == 0 || hashes[i] >>> shift != hashes[i - 1] >>> shift)
+                count++;
+        this.cells = new long[count];
+        this.cellStarts = new int[count + 1];
+        int c = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (i == 0 || hashes[i] >>> shift != hashes[i - 1] >>> shift) {
+                cells[c] = hashes[i] >>> shift;
+                cellStarts[c] = i;
+                c++;
+            }
+        }
+        cellStarts[count] = hashes.length;
+    }
+
+    /**
+     * Returns the number of records.
+     * 
+     * @return number of records
+     */
+    public int size() {
+        return columns.size();
+    }
+
+    /**
+     * Returns as an {@link Iterable} the results of a search within the
+     * bounding box given and where start &lt;=time &lt; finish.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records
+     */
+    public Iterable<Info<T, R>> find(final double topLeftLat, final double topLeftLon,
+            final double bottomRightLat, final double bottomRightLon, final long start,
+            final long finish) {
+        Coverage cover = Geomem.cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        final int[] ranges = cellRanges(cover);
+        return new Iterable<Info<T, R>>() {
+            @Override
+            public Iterator<Info<T, R>> iterator() {
+                return new AbstractIterator<Info<T, R>>() {
+                    // index into ranges
+                    private int range = 0;
+                    // current cell, and record index range within it
+                    private int cell = ranges.length == 0 ? 0 : ranges[0];
+                    private int index = 0;
+                    private int to = 0;
+
+                    @Override
+                    protected Info<T, R> computeNext() {
+                        while (true) {
+                            while (index < to) {
+                                int j = index++;
+                                double lat = columns.lats[j];
+                                double lon = columns.lons[j];
+                                if (lat >= bottomRightLat && lat < topLeftLat
+                                        && lon > topLeftLon && lon <= bottomRightLon)
+                                    return columns.info(j);
+                            }
+                            if (range == ranges.length)
+                                return endOfData();
+                            if (cell == ranges[range + 1]) {
+                                range += 2;
+                                if (range == ranges.length)
+                                    return endOfData();
+                                cell = ranges[range];
+                            }
+                            // the records of the cell in the time range
+                            int from = cellStarts[cell];
+                            int until = cellStarts[cell + 1];
+                            index = lowerBound(columns.times, from, until, start);
+                            to = lowerBound(columns.times, index, until, finish);
+                            cell++;
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the ranges [from, to) of indexes into cells of the cells that
+     * overlap the covering hashes as pairs of ints in ascending order without
+     * overlaps so that each record is found at most once.
+     */
+    private int[] cellRanges(Coverage cover) {
+        int cellLength = columns.cellLength;
+        int[] ranges = new int[cover.getHashes().size() * 2];
+        int i = 0;
+        for (String hash : cover.getHashes()) {
+            long prefix = Base32.decodeBase32(hash);
+            if (hash.length() <= cellLength) {
+                // cells within the hash
+                int shift = 5 * (cellLength - hash.length());
+                ranges[i++] = lowerBound(cells, prefix << shift);
+                ranges[i++] = lowerBound(cells, (prefix + 1) << shift);
+            } else {
+                // the cell containing the hash
+                long cell = prefix >>> 5 * (hash.length() - cellLength);
+                int index = lowerBound(cells, cell);
+                ranges[i++] = index;
+                ranges[i++] = index < cells.length && cells[index] == cell ? index + 1 : index;
+            }
+        }
+        return merge(ranges);
+    }
+
+    /**
+     * Returns the union of the ranges given as pairs of ints, sorted and
+     * without empty ranges.
+     */
+    static int[] merge(int[] ranges) {
+        int n = ranges.length / 2;
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++)
+            sorted[i] = (long) ranges[2 * i] << 32 | ranges[2 * i + 1];
+        Arrays.sort(sorted);
+        int[] merged = new int[ranges.length];
+        int m = 0;
+        for (long r : sorted) {
+            int from = (int) (r >>> 32);
+            int to = (int) r;
+            if (from >= to)
+                continue;
+            if (m > 0 && from <= merged[m - 1])
+                merged[m - 1] = Math.max(merged[m - 1], to);
+            else {
+                merged[m++] = from;
+                merged[m++] = to;
+            }
+        }
+        return Arrays.copyOf(merged, m);
+    }
+
+    /**
+     * Returns the index of the first element of the sorted array that is
+     * greater than or equal to value.
+     */
+    static int lowerBound(long[] a, long value) {
+        return lowerBound(a, 0, a.length, value);
+    }
+
+    /**
+     * Returns the index of the first element of a[from..to) (sorted) that is
+     * greater than or equal to value, or to if there is none.
+     */
+    static int lowerBound(long[] a, int from, int to, long value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+}
@@ -2,19 +2,49 @@ package com.github.davidmoten.geo.mem;
 
 import static com.google.common.base.Optional.of;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.github.davidmoten.geo.Base32;
 import com.github.davidmoten.geo.Coverage;
 import com.github.davidmoten.geo.GeoHash;
+import com.github.davidmoten.geo.LatLong;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * Provides fast concurrent querying using in memory
@@ -29,17 +59,352 @@ import com.google.common.collect.Maps;
 public class Geomem<T, R> {
 
     /**
-     * Maps from base32 geohash (long) to a map of time in epoch ms to
-     * {@link Info}.
+     * Number of rings searched by {@link #findNearest} at a hash length
+     * without finding enough records before the search is restarted at a
+     * shorter hash length.
      */
-    private final Map<Long, SortedMap<Long, Info<T, R>>> mapByGeoHash = Maps.newConcurrentMap();
+    private static final int MAX_RINGS_BEFORE_COARSER = 3;
 
     /**
-     * Records a mapByGeoHash as above for each id of type R.
+     * Width in ms of the time buckets used to estimate query result sizes.
      */
-    private final Map<R, Map<Long, SortedMap<Long, Info<T, R>>>> mapById = Maps.newConcurrentMap();
-    
-    private final Object lock = new Object();
+    private static final long TIME_BUCKET_WIDTH_MS = 3600000;
+
+    /**
+     * Default number of records buffered for a subscriber without demand.
+     */
+    private static final int DEFAULT_SUBSCRIPTION_BUFFER_SIZE = 256;
+
+    /**
+     * Number of records added between checks of the memory budget while
+     * within budget.
+     */
+    private static final int BUDGET_CHECK_INTERVAL = 64;
+
+    /**
+     * Number of records scanned by a query with a {@link QueryBudget} between
+     * checks of its deadline and cancellation.
+     */
+    private static final int DEADLINE_CHECK_INTERVAL = 64;
+
+    /**
+     * Fraction of the radius added in {@link #findWithin} to the bound of the
+     * equirectangular pre-check so that rounding never rejects a record in
+     * the circle.
+     */
+    private static final double EQUIRECTANGULAR_MARGIN = 0.001;
+
+    /**
+     * Number of characters beyond the requested hash length that
+     * {@link #aggregate} splits a cell on the edge of the box to before it
+     * scans the records of the cell instead.
+     */
+    private static final int MAX_AGGREGATE_SPLIT_DEPTH = 2;
+
+    /**
+     * Number of records in a cell on the edge of the box at or below which
+     * {@link #aggregate} scans the records rather than looking up the
+     * counters of the 32 children.
+     */
+    private static final int MAX_AGGREGATE_SCAN_COUNT = 64;
+
+    /**
+     * Maps from base32 geohash (long) to a map of (time in epoch ms, sequence)
+     * to {@link Info}.
+     */
+    private final ConcurrentMap<Long, ConcurrentNavigableMap<Key, Info<T, R>>> mapByGeoHash = Maps
+            .newConcurrentMap();
+
+    /**
+     * The records of each id in time order.
+     */
+    private final IdIndex<T, R> idIndex;
+
+    /**
+     * Maps from base32 geohash (long) to the counters of the records added to
+     * that geohash.
+     */
+    private final ConcurrentMap<Long, CellStats> statsByGeoHash = Maps.newConcurrentMap();
+
+    /**
+     * Counts of all records by time bucket.
+     */
+    private final TimeHistogram timeHistogram = new TimeHistogram(TIME_BUCKET_WIDTH_MS);
+
+    /**
+     * Maps from id to the latest (by time) {@link Info} for that id. Updated
+     * (with latestByGeoHash) only while holding the lock of the id in
+     * idIndex.
+     */
+    private final ConcurrentMap<R, Info<T, R>> latestById = Maps.newConcurrentMap();
+
+    /**
+     * Maps from base32 geohash (long) to the latest {@link Info} of each id
+     * whose latest position is inside that geohash.
+     */
+    private final ConcurrentMap<Long, ConcurrentMap<R, Info<T, R>>> latestByGeoHash = Maps
+            .newConcurrentMap();
+
+    /**
+     * Source of the sequence numbers that distinguish records with the same
+     * time.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Log of added records, null if records are not logged.
+     */
+    private final WriteAheadLog<T, R> writeAheadLog;
+
+    /**
+     * Standing queries that added records are delivered to.
+     */
+    private final Subscriptions<T, R> subscriptions;
+
+    /**
+     * If true a record with an id replaces the previous record of that id.
+     */
+    private final boolean upsert;
+
+    /**
+     * End of the time range already thinned by each compaction tier. Guarded
+     * by itself; held for the whole of a compaction.
+     */
+    private final Map<CompactionTier, Long> compactedUntil = Maps.newHashMap();
+
+    /**
+     * Estimates the bytes of a record value, null if payloads are not
+     * counted.
+     */
+    private final Function<? super T, Integer> payloadSizer;
+
+    /**
+     * Sum of the estimated bytes of the values of the records held.
+     */
+    private final LongAdder payloadBytes = new LongAdder();
+
+    /**
+     * Maximum estimated bytes, Long.MAX_VALUE if unbounded.
+     */
+    private final long memoryBudget;
+
+    /**
+     * Action when over budget, null if unbounded.
+     */
+    private final OverBudgetPolicy overBudgetPolicy;
+
+    /**
+     * Sequence number at or after which the memory budget is next checked.
+     */
+    private volatile long nextBudgetCheck;
+
+    /**
+     * True if the last check found the memory budget exceeded, in which case
+     * every add checks it (with REJECT no sequence numbers are used until
+     * memory is freed).
+     */
+    private volatile boolean overBudget;
+
+    /**
+     * Held while evicting so that concurrent adds do not all evict.
+     */
+    private final Object evictionLock = new Object();
+
+    /**
+     * Receives measurements of adds and queries.
+     */
+    private final GeomemMetrics metrics;
+
+    /**
+     * Constructor. Records are held in memory only.
+     */
+    public Geomem() {
+        this(new Builder<T, R>());
+    }
+
+    private Geomem(Builder<T, R> builder) {
+        this.writeAheadLog = builder.writeAheadLog;
+        this.subscriptions = new Subscriptions<T, R>(builder.subscriptionBufferSize);
+        this.upsert = builder.upsert;
+        this.payloadSizer = builder.payloadSizer;
+        this.memoryBudget = builder.memoryBudget;
+        this.overBudgetPolicy = builder.overBudgetPolicy;
+        this.metrics = builder.metrics;
+        this.idIndex = new IdIndex<T, R>(metrics);
+    }
+
+    /**
+     * Returns a builder for a {@link Geomem} with optional features.
+     * 
+     * @param <T>
+     *            The type of the record with position and time.
+     * @param <R>
+     *            The type of the id of the record with position and time.
+     * @return builder
+     */
+    public static <T, R> Builder<T, R> builder() {
+        return new Builder<T, R>();
+    }
+
+    /**
+     * Builder for a {@link Geomem}.
+     * 
+     * @param <T>
+     *            The type of the record with position and time.
+     * @param <R>
+     *            The type of the id of the record with position and time.
+     */
+    public static final class Builder<T, R> {
+
+        private WriteAheadLog<T, R> writeAheadLog;
+        private int subscriptionBufferSize = DEFAULT_SUBSCRIPTION_BUFFER_SIZE;
+        private boolean upsert;
+        private Function<? super T, Integer> payloadSizer;
+        private long memoryBudget = Long.MAX_VALUE;
+        private OverBudgetPolicy overBudgetPolicy;
+        private GeomemMetrics metrics = GeomemMetrics.NONE;
+
+        private Builder() {
+            // use Geomem.builder()
+        }
+
+        /**
+         * Sets the log that every added record is appended to before it is
+         * indexed. When the {@link Geomem} is built the records already in the
+         * log are added to it (without being logged again).
+         * 
+         * @param writeAheadLog
+         *            log of added records
+         * @return this
+         */
+        public Builder<T, R> writeAheadLog(WriteAheadLog<T, R> writeAheadLog) {
+            this.writeAheadLog = writeAheadLog;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of records buffered for a subscriber (see
+         * {@link Geomem#subscribe}) that has not requested them. A
+         * subscription fails if its buffer overflows. The default is 256.
+         * 
+         * @param subscriptionBufferSize
+         *            maximum buffered records per subscription
+         * @return this
+         */
+        public Builder<T, R> subscriptionBufferSize(int subscriptionBufferSize) {
+            Preconditions.checkArgument(subscriptionBufferSize > 0,
+                    "subscriptionBufferSize must be positive");
+            this.subscriptionBufferSize = subscriptionBufferSize;
+            return this;
+        }
+
+        /**
+         * Sets whether the store holds only the current record of each id.
+         * In upsert mode adding a record for an id that already has a record
+         * moves the id to the new position and time (atomically for that id)
+         * rather than appending, so the store stays the size of the set of
+         * ids however often they report. A record older than the current
+         * record of its id is ignored. Records without an id are appended as
+         * usual. The default is false.
+         * 
+         * @param upsert
+         *            if true keep only the current record of each id
+         * @return this
+         */
+        public Builder<T, R> upsert(boolean upsert) {
+            this.upsert = upsert;
+            return this;
+        }
+
+        /**
+         * Sets the function estimating the heap bytes of a record value so
+         * that payloads are included in {@link Geomem#memoryUsage()}. By
+         * default payloads are not counted.
+         * 
+         * @param payloadSizer
+         *            estimates the bytes of a value
+         * @return this
+         */
+        public Builder<T, R> payloadSizer(Function<? super T, Integer> payloadSizer) {
+            this.payloadSizer = Preconditions.checkNotNull(payloadSizer);
+            return this;
+        }
+
+        /**
+         * Sets the maximum estimated bytes (see {@link Geomem#memoryUsage()})
+         * and what to do when it is exceeded. With
+         * {@link OverBudgetPolicy#EVICT_OLDEST} the oldest records are removed
+         * after an add until usage is within budget. With
+         * {@link OverBudgetPolicy#REJECT} an add throws
+         * {@link MemoryBudgetExceededException} while usage is over budget, so
+         * writers are held back until memory is freed (for example by
+         * {@link Geomem#compact(long, List)}). The budget is checked every 64
+         * records and on every batch, so usage can exceed it by up to that
+         * many records or one batch. Empty geohash cells are not removed by
+         * eviction.
+         * 
+         * @param bytes
+         *            maximum estimated bytes
+         * @param policy
+         *            action when over budget
+         * @return this
+         */
+        public Builder<T, R> memoryBudget(long bytes, OverBudgetPolicy policy) {
+            Preconditions.checkArgument(bytes > 0, "bytes must be positive");
+            this.memoryBudget = bytes;
+            this.overBudgetPolicy = Preconditions.checkNotNull(policy);
+            return this;
+        }
+
+        /**
+         * Sets the receiver of measurements of adds and queries, for example
+         * a {@link StripedGeomemMetrics}. By default nothing is measured.
+         * 
+         * @param metrics
+         *            receives measurements
+         * @return this
+         */
+        public Builder<T, R> metrics(GeomemMetrics metrics) {
+            this.metrics = Preconditions.checkNotNull(metrics);
+            return this;
+        }
+
+        /**
+         * Returns a new {@link Geomem} containing the records replayed from
+         * the write ahead log if one has been set.
+         * 
+         * @return geomem
+         * @throws UncheckedIOException
+         *             if the write ahead log cannot be read
+         */
+        public Geomem<T, R> build() {
+            Geomem<T, R> g = new Geomem<T, R>(this);
+            if (writeAheadLog != null) {
+                try {
+                    g.index(writeAheadLog.read(), null);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return g;
+        }
+
+        /**
+         * Returns a new empty {@link Geomem} to be one shard of a
+         * {@link ShardedGeomem}.
+         * 
+         * @return geomem
+         * @throws IllegalArgumentException
+         *             if a write ahead log or upsert mode has been set
+         */
+        Geomem<T, R> buildShard() {
+            Preconditions.checkArgument(writeAheadLog == null,
+                    "a write ahead log cannot be shared by the shards");
+            Preconditions.checkArgument(!upsert,
+                    "upsert is not supported because an id can move between shards");
+            return new Geomem<T, R>(this);
+        }
+    }
 
     /**
      * Returns as an {@link Iterable} the results of a search within the
@@ -53,30 +418,1237 @@ public class Geomem<T, R> {
      *            latitude of bottom right point (south east)
      * @param bottomRightLon
      *            longitude of bottom right point (south east)
-     * @param start
-     *            start time inclusive
-     * @param finish
-     *            finish time exclusive
-     * @return info records
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records
+     */
+    public Iterable<Info<T, R>> find(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish) {
+
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        QueryMeter meter = new QueryMeter(metrics, cover.getHashes().size(), topLeftLat,
+                topLeftLon, bottomRightLat, bottomRightLon, start, finish);
+        final List<Iterable<Info<T, R>>> cells = Lists.newArrayList();
+        for (String hash : cover.getHashes())
+            cells.add(find(start, finish, hash));
+        return meter.record(
+                createRegionFilter(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon),
+                new Function<Predicate<Info<T, R>>, Iterable<Info<T, R>>>() {
+                    @Override
+                    public Iterable<Info<T, R>> apply(Predicate<Info<T, R>> regionFilter) {
+                        List<Iterable<Info<T, R>>> list = Lists.newArrayList();
+                        for (Iterable<Info<T, R>> cell : cells)
+                            list.add(Iterables.filter(cell, regionFilter));
+                        return Iterables.concat(list);
+                    }
+                });
+    }
+
+    /**
+     * Returns as an {@link Iterable} at most limit results of a search within
+     * the bounding box given and where start &lt;=time &lt; finish in the given
+     * order. The search is lazy: only as many records are scanned as are
+     * needed to produce the results consumed. Ordered results are produced by
+     * merging the time sorted records of each covering geohash so the first
+     * results are available without scanning the whole time window.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param limit
+     *            maximum number of results
+     * @return info records
+     */
+    public Iterable<Info<T, R>> find(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish, Order order, int limit) {
+        Preconditions.checkArgument(limit >= 0, "limit cannot be negative");
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        QueryMeter meter = new QueryMeter(metrics, cover.getHashes().size(), topLeftLat,
+                topLeftLon, bottomRightLat, bottomRightLon, start, finish);
+        List<NavigableMap<Key, Info<T, R>>> cells = Lists.newArrayList();
+        for (String hash : cover.getHashes()) {
+            NavigableMap<Key, Info<T, R>> cell = cell(start, finish, hash);
+            if (cell != null)
+                cells.add(order == Order.DESCENDING ? cell.descendingMap() : cell);
+        }
+        Iterable<Info<T, R>> it;
+        if (order == Order.UNORDERED) {
+            List<Iterable<Info<T, R>>> values = Lists.newArrayList();
+            for (NavigableMap<Key, Info<T, R>> cell : cells)
+                values.add(cell.values());
+            it = Iterables.concat(values);
+        } else
+            it = mergeByTime(cells, order == Order.DESCENDING);
+        final Iterable<Info<T, R>> records = it;
+        return meter.record(
+                createRegionFilter(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon),
+                new Function<Predicate<Info<T, R>>, Iterable<Info<T, R>>>() {
+                    @Override
+                    public Iterable<Info<T, R>> apply(Predicate<Info<T, R>> regionFilter) {
+                        return Iterables.limit(Iterables.filter(records, regionFilter), limit);
+                    }
+                });
+    }
+
+    /**
+     * Returns as a sequential {@link Stream} at most limit results of a search
+     * within the bounding box given and where start &lt;=time &lt; finish in
+     * the given order. Records are scanned only as the stream is consumed so
+     * short-circuiting operations terminate the search early.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param limit
+     *            maximum number of results
+     * @return stream of info records
+     */
+    public Stream<Info<T, R>> stream(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish, Order order,
+            int limit) {
+        Iterable<Info<T, R>> it = find(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon,
+                start, finish, order, limit);
+        int characteristics = Spliterator.NONNULL;
+        if (order != Order.UNORDERED)
+            characteristics |= Spliterator.ORDERED;
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(it.iterator(), characteristics), false);
+    }
+
+    /**
+     * Pushes at most limit results of a search within the bounding box given
+     * and where start &lt;=time &lt; finish in the given order to the visitor.
+     * The search stops as soon as the visitor returns false.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param limit
+     *            maximum number of results
+     * @param visitor
+     *            receives the results
+     * @return number of records passed to the visitor
+     */
+    public long find(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish, Order order, int limit,
+            Visitor<T, R> visitor) {
+        long count = 0;
+        for (Info<T, R> info : find(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon,
+                start, finish, order, limit)) {
+            count++;
+            if (!visitor.visit(info))
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the results of a search within the bounding box given and where
+     * start &lt;=time &lt; finish in the given order, scanning the covering
+     * geohashes concurrently on the given executor (for example a
+     * {@link java.util.concurrent.ForkJoinPool} or a virtual thread per task
+     * executor). Use for large analytical queries where the covering geohashes
+     * hold many records; the results are collected in memory before being
+     * returned. Ordered results are produced by merging the time sorted
+     * results of each covering geohash.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param executor
+     *            runs the scan of each covering geohash
+     * @return info records
+     * @throws CompletionException
+     *             if the scan of a covering geohash fails
+     */
+    public List<Info<T, R>> find(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish, Order order, Executor executor) {
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        QueryMeter meter = new QueryMeter(metrics, cover.getHashes().size(), topLeftLat,
+                topLeftLon, bottomRightLat, bottomRightLon, start, finish);
+        final Predicate<Info<T, R>> regionFilter = meter.counting(createRegionFilter(
+                topLeftLat, topLeftLon, bottomRightLat, bottomRightLon));
+        List<CompletableFuture<List<Entry<Key, Info<T, R>>>>> futures = Lists.newArrayList();
+        for (String hash : cover.getHashes()) {
+            NavigableMap<Key, Info<T, R>> cell = cell(start, finish, hash);
+            if (cell != null) {
+                final NavigableMap<Key, Info<T, R>> m = order == Order.DESCENDING
+                        ? cell.descendingMap() : cell;
+                futures.add(CompletableFuture
+                        .supplyAsync(new Supplier<List<Entry<Key, Info<T, R>>>>() {
+                            @Override
+                            public List<Entry<Key, Info<T, R>>> get() {
+                                List<Entry<Key, Info<T, R>>> list = Lists.newArrayList();
+                                for (Entry<Key, Info<T, R>> entry : m.entrySet())
+                                    if (regionFilter.apply(entry.getValue()))
+                                        list.add(entry);
+                                return list;
+                            }
+                        }, executor));
+            }
+        }
+        List<List<Entry<Key, Info<T, R>>>> results = Lists.newArrayList();
+        int size = 0;
+        for (CompletableFuture<List<Entry<Key, Info<T, R>>>> future : futures) {
+            List<Entry<Key, Info<T, R>>> result = future.join();
+            results.add(result);
+            size += result.size();
+        }
+        List<Info<T, R>> list = Lists.newArrayListWithCapacity(size);
+        if (order == Order.UNORDERED) {
+            for (List<Entry<Key, Info<T, R>>> result : results)
+                for (Entry<Key, Info<T, R>> entry : result)
+                    list.add(entry.getValue());
+        } else
+            Iterables.addAll(list, mergeEntriesByTime(results, order == Order.DESCENDING));
+        meter.record(list.size());
+        return list;
+    }
+
+    /**
+     * Returns the results of a search within the bounding box given and where
+     * start &lt;= time &lt; finish in the given order, stopping early if the
+     * search exceeds its budget. The budget is checked as each record is
+     * scanned (the deadline every 64 records) so a query over a large area
+     * or time range cannot hold the calling thread for longer than allowed.
+     * A search that stops early returns the results found so far flagged as
+     * truncated; for ordered searches these are the earliest (or latest)
+     * matching records.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param budget
+     *            limits on the search
+     * @return results
+     */
+    public QueryResult<T, R> find(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish, Order order, QueryBudget budget) {
+        return find(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, start, finish, order,
+                budget, null);
+    }
+
+    /**
+     * Runs {@link #find(double, double, double, double, long, long, Order, QueryBudget)}
+     * on the given executor so that the calling thread (for example a request
+     * thread) is not used to scan the records. Use an executor suited to many
+     * concurrent queries, for example a
+     * {@link java.util.concurrent.ForkJoinPool} or on Java 21 and later a
+     * virtual thread per task executor. Cancelling the returned future (or
+     * completing it any other way) stops the scan of the covering cells at
+     * its next check (every 64 records). The timeout of the budget is
+     * measured from when the search starts on the executor.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param budget
+     *            limits on the search
+     * @param executor
+     *            runs the search
+     * @return future results
+     */
+    public CompletableFuture<QueryResult<T, R>> findAsync(final double topLeftLat,
+            final double topLeftLon, final double bottomRightLat, final double bottomRightLon,
+            final long start, final long finish, final Order order, final QueryBudget budget,
+            Executor executor) {
+        final CompletableFuture<QueryResult<T, R>> future = new CompletableFuture<QueryResult<T, R>>();
+        return runAsync(future, executor, new Supplier<QueryResult<T, R>>() {
+            @Override
+            public QueryResult<T, R> get() {
+                return find(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, start,
+                        finish, order, budget, future);
+            }
+        });
+    }
+
+    /**
+     * Completes the future with the value of the supplier run on the
+     * executor unless the future is completed (for example cancelled) before
+     * it runs.
+     */
+    private static <V> CompletableFuture<V> runAsync(final CompletableFuture<V> future,
+            Executor executor, final Supplier<V> supplier) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone())
+                        return;
+                    try {
+                        future.complete(supplier.get());
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // for example RejectedExecutionException
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs a search within its budget, also stopping if stop (if not null) is
+     * done.
+     */
+    private QueryResult<T, R> find(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish, Order order, QueryBudget budget,
+            Future<?> stop) {
+        long startNanos = System.nanoTime();
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon,
+                Math.min(budget.maxCells(), GeoHash.DEFAULT_MAX_HASHES));
+        List<String> hashes = Lists.newArrayList(cover.getHashes());
+        // only when more length 1 hashes than allowed are needed
+        boolean truncated = hashes.size() > budget.maxCells();
+        if (truncated)
+            hashes = hashes.subList(0, budget.maxCells());
+        QueryMeter meter = new QueryMeter(metrics, hashes.size(), topLeftLat, topLeftLon,
+                bottomRightLat, bottomRightLon, start, finish);
+        Predicate<Info<T, R>> regionFilter = meter.counting(createRegionFilter(
+                topLeftLat, topLeftLon, bottomRightLat, bottomRightLon));
+        List<NavigableMap<Key, Info<T, R>>> cells = Lists.newArrayList();
+        for (String hash : hashes) {
+            NavigableMap<Key, Info<T, R>> cell = cell(start, finish, hash);
+            if (cell != null)
+                cells.add(order == Order.DESCENDING ? cell.descendingMap() : cell);
+        }
+        Iterator<Info<T, R>> it;
+        if (order == Order.UNORDERED) {
+            List<Iterable<Info<T, R>>> values = Lists.newArrayList();
+            for (NavigableMap<Key, Info<T, R>> cell : cells)
+                values.add(cell.values());
+            it = Iterables.concat(values).iterator();
+        } else
+            it = mergeByTime(cells, order == Order.DESCENDING).iterator();
+        List<Info<T, R>> list = Lists.newArrayList();
+        long scanned = 0;
+        while (it.hasNext()) {
+            if (scanned >= budget.maxScanned() || (scanned % DEADLINE_CHECK_INTERVAL == 0
+                    && (System.nanoTime() - startNanos > budget.timeoutNanos()
+                            || (stop != null && stop.isDone())))) {
+                truncated = true;
+                break;
+            }
+            Info<T, R> info = it.next();
+            scanned++;
+            if (regionFilter.apply(info))
+                list.add(info);
+        }
+        meter.record(list.size());
+        return new QueryResult<T, R>(list, truncated, hashes.size(), scanned);
+    }
+
+    /**
+     * Returns a page of at most pageSize results of a search within the
+     * bounding box given and where start &lt;= time &lt; finish in the given
+     * order. Pass the token of the previous page (and the same box, times and
+     * order) to get the next page. The token holds the position after the
+     * last record of the previous page, being the key (time and sequence) of
+     * that record and for {@link Order#UNORDERED} the covering cell it came
+     * from, so each page resumes with a {@code tailMap} of the skip list of
+     * each cell rather than by skipping the records of earlier pages.
+     * 
+     * <p>
+     * Records added between pages are returned by later pages if they come
+     * after the position of the token (for ordered queries, if they are later
+     * (or earlier for descending) than the last record returned).
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param pageSize
+     *            maximum number of records in the page
+     * @param token
+     *            token of the previous page, absent for the first page
+     * @return page
+     * @throws IllegalArgumentException
+     *             if the token was not returned by a previous page
+     */
+    public Page<T, R> findPage(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish, Order order, int pageSize,
+            Optional<String> token) {
+        return findPage(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, start, finish,
+                order, pageSize, token, null);
+    }
+
+    /**
+     * Returns a page of results, stopping early with the records found so far
+     * if stop (if not null) is done.
+     */
+    private Page<T, R> findPage(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish, Order order, int pageSize,
+            Optional<String> token, Future<?> stop) {
+        Preconditions.checkArgument(pageSize > 0, "pageSize must be positive");
+        PageToken position = token.isPresent() ? PageToken.decode(token.get()) : null;
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        List<String> hashes = Lists.newArrayList(cover.getHashes());
+        QueryMeter meter = new QueryMeter(metrics, hashes.size(), topLeftLat, topLeftLon,
+                bottomRightLat, bottomRightLon, start, finish);
+        Predicate<Info<T, R>> regionFilter = meter.counting(createRegionFilter(
+                topLeftLat, topLeftLon, bottomRightLat, bottomRightLon));
+        boolean descending = order == Order.DESCENDING;
+        List<Info<T, R>> list = Lists.newArrayList();
+        Optional<String> next = Optional.absent();
+        long scanned = 0;
+        boolean stopped = false;
+        if (order == Order.UNORDERED) {
+            int first = position == null ? 0 : position.cell();
+            for (int i = first; i < hashes.size() && !next.isPresent() && !stopped; i++) {
+                NavigableMap<Key, Info<T, R>> cell = cell(start, finish, hashes.get(i));
+                if (cell == null)
+                    continue;
+                if (position != null && i == first)
+                    cell = cell.tailMap(position.key(), false);
+                for (Entry<Key, Info<T, R>> entry : cell.entrySet()) {
+                    if (stop != null && ++scanned % DEADLINE_CHECK_INTERVAL == 0
+                            && stop.isDone()) {
+                        stopped = true;
+                        break;
+                    }
+                    if (regionFilter.apply(entry.getValue())) {
+                        list.add(entry.getValue());
+                        if (list.size() == pageSize) {
+                            next = of(new PageToken(i, entry.getKey()).encode());
+                            break;
+                        }
+                    }
+                }
+            }
+        } else {
+            // keys are unique across cells so the key alone is the position
+            List<Iterable<Entry<Key, Info<T, R>>>> cells = Lists.newArrayList();
+            for (String hash : hashes) {
+                NavigableMap<Key, Info<T, R>> cell = cell(start, finish, hash);
+                if (cell != null) {
+                    if (position != null)
+                        cell = descending ? cell.headMap(position.key(), false)
+                                : cell.tailMap(position.key(), false);
+                    cells.add((descending ? cell.descendingMap() : cell).entrySet());
+                }
+            }
+            for (Entry<Key, Info<T, R>> entry : mergeEntries(cells, descending)) {
+                if (stop != null && ++scanned % DEADLINE_CHECK_INTERVAL == 0 && stop.isDone())
+                    break;
+                if (regionFilter.apply(entry.getValue())) {
+                    list.add(entry.getValue());
+                    if (list.size() == pageSize) {
+                        next = of(new PageToken(0, entry.getKey()).encode());
+                        break;
+                    }
+                }
+            }
+        }
+        meter.record(list.size());
+        return new Page<T, R>(list, next);
+    }
+
+    /**
+     * Runs
+     * {@link #findPage(double, double, double, double, long, long, Order, int, Optional)}
+     * on the given executor. Cancelling the returned future (or completing it
+     * any other way) stops the scan of the covering cells at its next check
+     * (every 64 records).
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param pageSize
+     *            maximum number of records in the page
+     * @param token
+     *            token of the previous page, absent for the first page
+     * @param executor
+     *            runs the search
+     * @return future page
+     */
+    public CompletableFuture<Page<T, R>> findPageAsync(final double topLeftLat,
+            final double topLeftLon, final double bottomRightLat, final double bottomRightLon,
+            final long start, final long finish, final Order order, final int pageSize,
+            final Optional<String> token, Executor executor) {
+        final CompletableFuture<Page<T, R>> future = new CompletableFuture<Page<T, R>>();
+        return runAsync(future, executor, new Supplier<Page<T, R>>() {
+            @Override
+            public Page<T, R> get() {
+                return findPage(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, start,
+                        finish, order, pageSize, token, future);
+            }
+        });
+    }
+
+    /**
+     * Registers a standing query: records added from now on that are within
+     * the bounding box given are delivered to the subscriber as it requests
+     * them. Records are delivered in the order they are added (by the thread
+     * adding them or requesting them) and the subscription continues until it
+     * is cancelled.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param subscriber
+     *            receives the records
+     */
+    public void subscribe(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, Subscriber<? super Info<T, R>> subscriber) {
+        subscribe(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, Optional.<R> absent(),
+                subscriber);
+    }
+
+    /**
+     * Registers a standing query: records added from now on that are within
+     * the bounding box given and, if present, have the given id are delivered
+     * to the subscriber as it requests them. Records are delivered in the
+     * order they are added (by the thread adding them or requesting them) and
+     * the subscription continues until it is cancelled. Matching an added
+     * record against the subscriptions costs one lookup per geohash length,
+     * however many subscriptions there are.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param id
+     *            if present only records with this id are delivered
+     * @param subscriber
+     *            receives the records
+     */
+    public void subscribe(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, final Optional<R> id,
+            Subscriber<? super Info<T, R>> subscriber) {
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        Set<String> hashes = cover.getHashes();
+        long[] keys = new long[hashes.size()];
+        int i = 0;
+        for (String hash : hashes)
+            keys[i++] = key(hash);
+        final Predicate<Info<T, R>> regionFilter = createRegionFilter(topLeftLat, topLeftLon,
+                bottomRightLat, bottomRightLon);
+        subscriptions.subscribe(keys, new Predicate<Info<T, R>>() {
+            @Override
+            public boolean apply(Info<T, R> info) {
+                return regionFilter.apply(info) && (!id.isPresent() || id.equals(info.id()));
+            }
+        }, subscriber);
+    }
+
+    /**
+     * Returns as an {@link Iterable} the latest record (by time) of each id
+     * whose latest position is within the bounding box given. Records added
+     * without an id are not included. Only the last known position index is
+     * searched so the cost is proportional to the number of ids in the box
+     * rather than the number of records.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @return latest info records
+     */
+    public Iterable<Info<T, R>> findLatest(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon) {
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        Predicate<Info<T, R>> regionFilter = createRegionFilter(topLeftLat, topLeftLon,
+                bottomRightLat, bottomRightLon);
+        Iterable<Info<T, R>> it = Collections.emptyList();
+        for (String hash : cover.getHashes()) {
+            ConcurrentMap<R, Info<T, R>> latest = latestByGeoHash.get(key(hash));
+            if (latest != null) {
+                it = Iterables.concat(it, Iterables.filter(latest.values(), regionFilter));
+            }
+        }
+        return it;
+    }
+
+    /**
+     * Returns the latest record (by time) added for the given id.
+     * 
+     * @param id
+     *            identifier
+     * @return latest info record or absent if none added for the id
+     */
+    public Optional<Info<T, R>> findLatest(R id) {
+        return Optional.fromNullable(latestById.get(id));
+    }
+
+    /**
+     * Returns the track of the given id being its records where start &lt;=
+     * time &lt; finish in time order. Only the index for the id is searched.
+     * 
+     * @param id
+     *            identifier
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records in time order
+     */
+    public Iterable<Info<T, R>> findTrack(R id, long start, long finish) {
+        return findTrack(id, start, finish, 0);
+    }
+
+    /**
+     * Returns the track of the given id being its records where start &lt;=
+     * time &lt; finish in time order, downsampled so that successive returned
+     * records are at least minInterval ms apart. Only the index for the id is
+     * searched.
+     * 
+     * @param id
+     *            identifier
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param minInterval
+     *            minimum time in ms between returned records, 0 to return all
+     * @return info records in time order
+     */
+    public Iterable<Info<T, R>> findTrack(R id, long start, long finish, long minInterval) {
+        return downsample(idIndex.find(id, start, finish), minInterval);
+    }
+
+    /**
+     * Returns the track of the given id being its records within the bounding
+     * box and where start &lt;= time &lt; finish in time order. Only the index
+     * for the id is searched.
+     * 
+     * @param id
+     *            identifier
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records in time order
+     */
+    public Iterable<Info<T, R>> findTrack(R id, double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish) {
+        return findTrack(id, topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, start,
+                finish, 0);
+    }
+
+    /**
+     * Returns the track of the given id being its records within the bounding
+     * box and where start &lt;= time &lt; finish in time order, downsampled so
+     * that successive returned records are at least minInterval ms apart. Only
+     * the index for the id is searched.
+     * 
+     * @param id
+     *            identifier
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param minInterval
+     *            minimum time in ms between returned records, 0 to return all
+     * @return info records in time order
+     */
+    public Iterable<Info<T, R>> findTrack(R id, double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish,
+            long minInterval) {
+        Iterable<Info<T, R>> it = Iterables.filter(idIndex.find(id, start, finish),
+                createRegionFilter(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon));
+        return downsample(it, minInterval);
+    }
+
+    /**
+     * Returns the k records nearest (by great circle distance) to the given
+     * point where start &lt;= time &lt; finish, nearest first. At most one
+     * record (the nearest) is returned for each id. Records without an id are
+     * treated as distinct.
+     * 
+     * <p>
+     * The search scans rings of geohash cells of equal length outward from the
+     * cell containing the point and stops as soon as no cell in the next ring
+     * can contain a record nearer than the kth nearest found so far.
+     * 
+     * @param lat
+     *            latitude of the point
+     * @param lon
+     *            longitude of the point
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param k
+     *            maximum number of records to return
+     * @return nearest records, nearest first
+     */
+    public List<Info<T, R>> findNearest(double lat, double lon, long start, long finish, int k) {
+        Preconditions.checkArgument(k > 0, "k must be greater than zero");
+        int length = nearestSearchHashLength(lat, lon, start, finish);
+        while (true) {
+            Nearest<T, R> nearest = new Nearest<T, R>(lat, lon, k);
+            if (findNearest(lat, lon, start, finish, length, nearest))
+                return nearest.toList();
+            length--;
+        }
+    }
+
+    /**
+     * Returns a hash length for a nearest search being one less than the
+     * longest hash length of the cell containing the point that has records
+     * in the time range.
+     */
+    private int nearestSearchHashLength(double lat, double lon, long start, long finish) {
+        String hash = GeoHash.encodeHash(lat, lon);
+        int length = 1;
+        while (length < hash.length()
+                && !Iterables.isEmpty(find(start, finish, hash.substring(0, length + 1))))
+            length++;
+        return Math.max(1, length - 1);
+    }
+
+    /**
+     * Scans rings of cells of the given hash length around the point offering
+     * records to nearest. Returns false if the search was abandoned because
+     * too many rings were scanned without finding k records (never happens
+     * for hash length 1).
+     */
+    private boolean findNearest(double lat, double lon, long start, long finish, int length,
+            Nearest<T, R> nearest) {
+        LatLong centre = GeoHash.decodeHash(GeoHash.encodeHash(lat, lon, length));
+        double w = GeoHash.widthDegrees(length);
+        double h = GeoHash.heightDegrees(length);
+        Set<String> visited = Sets.newHashSet();
+        for (int r = 0;; r++) {
+            if (r > 0) {
+                // lower bound for distance to anything outside rings 0..r-1
+                double bound = Distance.toOutside(lat, lon,
+                        centre.getLat() - h / 2 - (r - 1) * h,
+                        centre.getLat() + h / 2 + (r - 1) * h,
+                        centre.getLon() - w / 2 - (r - 1) * w,
+                        centre.getLon() + w / 2 + (r - 1) * w);
+                if (bound == Double.MAX_VALUE || bound >= nearest.kthDistance())
+                    return true;
+                else if (length > 1 && r > MAX_RINGS_BEFORE_COARSER && !nearest.isFull())
+                    return false;
+            }
+            // the cells on the perimeter of the square of side 2r + 1
+            int step = r == 0 ? 1 : 2 * r;
+            for (int i = -r; i <= r; i++) {
+                for (int j = -r; j <= r; j += (i == -r || i == r) ? 1 : step) {
+                    double cellLat = centre.getLat() + j * h;
+                    if (Math.abs(cellLat) < 90) {
+                        String hash = GeoHash.encodeHash(cellLat, centre.getLon() + i * w,
+                                length);
+                        if (visited.add(hash)) {
+                            for (Info<T, R> info : find(start, finish, hash))
+                                nearest.offer(info);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns as an {@link Iterable} the records within the given great circle
+     * distance of a point and where start &lt;= time &lt; finish. Only the
+     * geohash cells covering the bounding box of the circle are scanned and a
+     * cheap equirectangular distance check rejects most records outside the
+     * circle before the exact haversine distance is calculated.
+     * 
+     * @param lat
+     *            latitude of the centre of the circle
+     * @param lon
+     *            longitude of the centre of the circle
+     * @param radiusMetres
+     *            radius of the circle in metres
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records
+     */
+    public Iterable<Info<T, R>> findWithin(final double lat, final double lon,
+            final double radiusMetres, long start, long finish) {
+        Preconditions.checkArgument(radiusMetres >= 0, "radiusMetres cannot be negative");
+        double deltaLat = Math.toDegrees(radiusMetres / Distance.EARTH_RADIUS_METRES);
+        double topLeftLat = Math.min(90, lat + deltaLat);
+        double bottomRightLat = Math.max(-90, lat - deltaLat);
+        double topLeftLon;
+        double bottomRightLon;
+        // cosine of the latitude of the bounding box furthest from the equator
+        // so the equirectangular distance does not exceed the great circle
+        // distance of a record in the circle (with 0 only latitude is checked)
+        final double cosLat;
+        double deltaLon = deltaLat / Math.cos(Math.toRadians(lat));
+        if (topLeftLat == 90 || bottomRightLat == -90 || deltaLon >= 180) {
+            topLeftLon = -180;
+            bottomRightLon = 180;
+            cosLat = 0;
+        } else {
+            topLeftLon = lon - deltaLon;
+            bottomRightLon = lon + deltaLon;
+            cosLat = Math.cos(Math.toRadians(Math.abs(lat) + deltaLat));
+        }
+        final double bound = radiusMetres * (1 + EQUIRECTANGULAR_MARGIN);
+        final double boundSquared = bound * bound;
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        Predicate<Info<T, R>> filter = new Predicate<Info<T, R>>() {
+            @Override
+            public boolean apply(Info<T, R> info) {
+                return Distance.equirectangularSquared(lat, lon, info.lat(), info.lon(),
+                        cosLat) <= boundSquared
+                        && Distance.haversine(lat, lon, info.lat(), info.lon()) <= radiusMetres;
+            }
+        };
+        Iterable<Info<T, R>> it = Collections.emptyList();
+        for (String hash : cover.getHashes()) {
+            it = Iterables.concat(it, Iterables.filter(find(start, finish, hash), filter));
+        }
+        return it;
+    }
+
+    /**
+     * Returns the number of records (and their minimum and maximum times) in
+     * each geohash of length hashLength for the records within the bounding
+     * box and where start &lt;= time &lt; finish. Only geohashes with at least
+     * one record are included. Records are not materialised: cells entirely
+     * inside the bounding box and the time range are answered from counters
+     * maintained on insert and only the cells on the edges are scanned. An
+     * edge cell is split into children to find more cells inside the box only
+     * while it is within a couple of characters of hashLength and holds many
+     * records.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param hashLength
+     *            length of the geohashes of the returned counts
+     * @return counts keyed by geohash in geohash order
+     */
+    public Map<String, CellCount> aggregate(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish,
+            int hashLength) {
+        Preconditions.checkArgument(hashLength > 0 && hashLength <= GeoHash.MAX_HASH_LENGTH,
+                "hashLength must be between 1 and 12");
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        Aggregator aggregator = new Aggregator(topLeftLat, topLeftLon, bottomRightLat,
+                bottomRightLon, start, finish, hashLength);
+        for (String hash : cover.getHashes())
+            aggregator.aggregate(hash);
+        return aggregator.result();
+    }
+
+    /**
+     * Returns an estimate of the number of records that
+     * {@link #find(double, double, double, double, long, long)} would return.
+     * No records are scanned. The estimate is made from counters maintained on
+     * insert for the covering geohashes, assuming that records are spread
+     * evenly over the area of each geohash and that the proportion of a
+     * geohash's records in the time range is the same as for all records.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return estimated number of records
+     */
+    public long estimateCount(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, long start, long finish) {
+        Coverage cover = cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        if (bottomRightLon < topLeftLon)
+            bottomRightLon += 360;
+        double total = 0;
+        for (String hash : cover.getHashes()) {
+            CellStats stats = statsByGeoHash.get(key(hash));
+            if (stats != null && stats.count() > 0) {
+                double count = stats.count();
+                if (!stats.within(start, finish)) {
+                    long min = stats.minTime();
+                    // guard against overflow
+                    long max = stats.maxTime() == Long.MAX_VALUE ? Long.MAX_VALUE
+                            : stats.maxTime() + 1;
+                    double all = timeHistogram.count(min, max);
+                    if (all > 0)
+                        count *= timeHistogram.count(Math.max(start, min), Math.min(finish, max))
+                                / all;
+                    else
+                        count = 0;
+                }
+                total += count * areaProportion(hash, topLeftLat, topLeftLon, bottomRightLat,
+                        bottomRightLon);
+            }
+        }
+        return Math.round(total);
+    }
+
+    /**
+     * Returns the proportion of the area (in square degrees) of the geohash
+     * that is inside the bounding box.
+     */
+    private static double areaProportion(String hash, double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon) {
+        LatLong centre = GeoHash.decodeHash(hash);
+        double w = GeoHash.widthDegrees(hash.length());
+        double h = GeoHash.heightDegrees(hash.length());
+        double minLon = centre.getLon() - w / 2;
+        double lat = overlap(centre.getLat() - h / 2, centre.getLat() + h / 2, bottomRightLat,
+                topLeftLat);
+        // the box may extend beyond 180 longitude
+        double lon = overlap(minLon, minLon + w, topLeftLon, bottomRightLon)
+                + overlap(minLon + 360, minLon + w + 360, topLeftLon, bottomRightLon);
+        return Math.min(1, lat / h * lon / w);
+    }
+
+    private static double overlap(double a1, double a2, double b1, double b2) {
+        return Math.max(0, Math.min(a2, b2) - Math.max(a1, b1));
+    }
+
+    /**
+     * Accumulates the counts for one call of {@link Geomem#aggregate}.
+     */
+    private final class Aggregator {
+
+        private final double topLeftLat;
+        private final double topLeftLon;
+        private final double bottomRightLat;
+        private final double bottomRightLon;
+        private final long start;
+        private final long finish;
+        private final int hashLength;
+        private final Predicate<Info<T, R>> regionFilter;
+
+        /**
+         * Maps hash to count, minTime and maxTime.
+         */
+        private final Map<String, long[]> counts = Maps.newTreeMap();
+
+        Aggregator(double topLeftLat, double topLeftLon, double bottomRightLat,
+                double bottomRightLon, long start, long finish, int hashLength) {
+            this.topLeftLat = topLeftLat;
+            this.topLeftLon = topLeftLon;
+            this.bottomRightLat = bottomRightLat;
+            this.bottomRightLon = bottomRightLon;
+            this.start = start;
+            this.finish = finish;
+            this.hashLength = hashLength;
+            this.regionFilter = createRegionFilter(topLeftLat, topLeftLon, bottomRightLat,
+                    bottomRightLon);
+        }
+
+        void aggregate(String hash) {
+            CellStats stats = statsByGeoHash.get(key(hash));
+            if (stats == null || stats.count() == 0)
+                return;
+            boolean inTime = stats.within(start, finish);
+            boolean inBox = isInBox(hash);
+            if (hash.length() < hashLength || (!inBox && inTime
+                    && hash.length() < Math.min(GeoHash.MAX_HASH_LENGTH,
+                            hashLength + MAX_AGGREGATE_SPLIT_DEPTH)
+                    && stats.count() > MAX_AGGREGATE_SCAN_COUNT)) {
+                // partially covered cells in the time range are split in
+                // the hope that some children are entirely inside the box
+                for (int i = 0; i < 32; i++)
+                    aggregate(hash + Base32.encodeBase32(i, 1));
+            } else {
+                String target = hash.substring(0, hashLength);
+                if (inBox && inTime)
+                    add(target, stats.count(), stats.minTime(), stats.maxTime());
+                else {
+                    Iterable<Info<T, R>> it = find(start, finish, hash);
+                    if (!inBox)
+                        it = Iterables.filter(it, regionFilter);
+                    for (Info<T, R> info : it)
+                        add(target, 1, info.time(), info.time());
+                }
+            }
+        }
+
+        private boolean isInBox(String hash) {
+            LatLong centre = GeoHash.decodeHash(hash);
+            double w = GeoHash.widthDegrees(hash.length()) / 2;
+            double h = GeoHash.heightDegrees(hash.length()) / 2;
+            return centre.getLat() - h >= bottomRightLat && centre.getLat() + h < topLeftLat
+                    && centre.getLon() - w > topLeftLon && centre.getLon() + w <= bottomRightLon;
+        }
+
+        private void add(String hash, long count, long minTime, long maxTime) {
+            long[] c = counts.get(hash);
+            if (c == null)
+                counts.put(hash, new long[] { count, minTime, maxTime });
+            else {
+                c[0] += count;
+                c[1] = Math.min(c[1], minTime);
+                c[2] = Math.max(c[2], maxTime);
+            }
+        }
+
+        Map<String, CellCount> result() {
+            Map<String, CellCount> result = Maps.newTreeMap();
+            for (Entry<String, long[]> entry : counts.entrySet()) {
+                long[] c = entry.getValue();
+                if (c[0] > 0)
+                    result.put(entry.getKey(), new CellCount(entry.getKey(), c[0], c[1], c[2]));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns the values of the given maps merged in key order (time then
+     * sequence).
+     * 
+     * @param maps
+     *            maps sorted by key, in descending order if descending is true
+     * @param descending
+     *            if true merge in descending key order
+     * @return values in key order
+     */
+    private static <T, R> Iterable<Info<T, R>> mergeByTime(
+            List<? extends NavigableMap<Key, Info<T, R>>> maps, final boolean descending) {
+        if (maps.size() == 1)
+            return maps.get(0).values();
+        List<Iterable<Entry<Key, Info<T, R>>>> entries = Lists.newArrayList();
+        for (NavigableMap<Key, Info<T, R>> map : maps)
+            entries.add(map.entrySet());
+        return mergeEntriesByTime(entries, descending);
+    }
+
+    /**
+     * Returns the values of the given entries merged in key order (time then
+     * sequence).
+     * 
+     * @param entries
+     *            entries sorted by key, in descending order if descending is
+     *            true
+     * @param descending
+     *            if true merge in descending key order
+     * @return values in key order
+     */
+    private static <T, R> Iterable<Info<T, R>> mergeEntriesByTime(
+            List<? extends Iterable<Entry<Key, Info<T, R>>>> entries, boolean descending) {
+        return Iterables.transform(mergeEntries(entries, descending),
+                new Function<Entry<Key, Info<T, R>>, Info<T, R>>() {
+                    @Override
+                    public Info<T, R> apply(Entry<Key, Info<T, R>> entry) {
+                        return entry.getValue();
+                    }
+                });
+    }
+
+    /**
+     * Returns the given entries merged in key order (time then sequence).
+     * 
+     * @param entries
+     *            entries sorted by key, in descending order if descending is
+     *            true
+     * @param descending
+     *            if true merge in descending key order
+     * @return entries in key order
+     */
+    private static <T, R> Iterable<Entry<Key, Info<T, R>>> mergeEntries(
+            List<? extends Iterable<Entry<Key, Info<T, R>>>> entries, final boolean descending) {
+        return Iterables.mergeSorted(entries, new Comparator<Entry<Key, Info<T, R>>>() {
+            @Override
+            public int compare(Entry<Key, Info<T, R>> a, Entry<Key, Info<T, R>> b) {
+                int c = a.getKey().compareTo(b.getKey());
+                return descending ? -c : c;
+            }
+        });
+    }
+
+    /**
+     * Returns the records of a time ordered {@link Iterable} excluding those
+     * less than minInterval ms after the previously returned record.
+     * 
+     * @param it
+     *            records in time order
+     * @param minInterval
+     *            minimum time in ms between returned records
+     * @return downsampled records
+     */
+    private static <T, R> Iterable<Info<T, R>> downsample(final Iterable<Info<T, R>> it,
+            final long minInterval) {
+        if (minInterval <= 0)
+            return it;
+        return new Iterable<Info<T, R>>() {
+            @Override
+            public Iterator<Info<T, R>> iterator() {
+                final Iterator<Info<T, R>> source = it.iterator();
+                return new AbstractIterator<Info<T, R>>() {
+                    private long nextTime = Long.MIN_VALUE;
+
+                    @Override
+                    protected Info<T, R> computeNext() {
+                        while (source.hasNext()) {
+                            Info<T, R> info = source.next();
+                            if (info.time() >= nextTime) {
+                                nextTime = info.time() + minInterval;
+                                return info;
+                            }
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the geohashes covering the bounding box. Unlike
+     * {@link GeoHash#coverBoundingBox(double, double, double, double)} never
+     * returns null: if more than {@link GeoHash#DEFAULT_MAX_HASHES} hashes of
+     * length 1 are required (a box covering much of the world) then the
+     * length 1 hashes are returned.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @return coverage
      */
-    public Iterable<Info<T, R>> find(double topLeftLat, double topLeftLon, double bottomRightLat,
-            double bottomRightLon, long start, long finish) {
-
-        Coverage cover = GeoHash.coverBoundingBox(topLeftLat, topLeftLon, bottomRightLat,
-                bottomRightLon);
-        Iterable<Info<T, R>> it = Collections.emptyList();
-        for (String hash : cover.getHashes()) {
-            it = Iterables.concat(it, find(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon,
-                    start, finish, hash));
-        }
-        return it;
+    static Coverage cover(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon) {
+        return cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon,
+                GeoHash.DEFAULT_MAX_HASHES);
     }
 
     /**
-     * Returns an {@link Iterable} of {@link Info} being those records within
-     * the bounding box, start<=time < finish and inside the geoHash withinHash.
-     * 
-     * Filters first on withinHash, then time, then bounding box.
+     * Returns the geohashes of the longest length that covers the bounding box
+     * with at most maxHashes hashes, or the hashes of length 1 if there is no
+     * such length.
      * 
      * @param topLeftLat
      *            latitude of top left point (north west)
@@ -86,21 +1658,19 @@ public class Geomem<T, R> {
      *            latitude of bottom right point (south east)
      * @param bottomRightLon
      *            longitude of bottom right point (south east)
-     * @param start
-     *            start time inclusive
-     * @param finish
-     *            finish time exclusive
-     * @param withinHash
-     *            items returned are within this hash
-     * @return Info records
+     * @param maxHashes
+     *            maximum number of hashes
+     * @return coverage
      */
-    private Iterable<Info<T, R>> find(final double topLeftLat, final double topLeftLon,
-            final double bottomRightLat, final double bottomRightLon, long start, long finish,
-            String withinHash) {
-
-        Iterable<Info<T, R>> it = find(start, finish, withinHash);
-        return Iterables.filter(it,
-                createRegionFilter(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon));
+    static Coverage cover(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon, int maxHashes) {
+        Coverage cover = GeoHash.coverBoundingBoxMaxHashes(topLeftLat, topLeftLon,
+                bottomRightLat, bottomRightLon, maxHashes);
+        if (cover == null)
+            return GeoHash.coverBoundingBox(topLeftLat, topLeftLon, bottomRightLat,
+                    bottomRightLon, 1);
+        else
+            return cover;
     }
 
     /**
@@ -119,8 +1689,27 @@ public class Geomem<T, R> {
      * @return predicate
      */
     @VisibleForTesting
-    Predicate<Info<T, R>> createRegionFilter(final double topLeftLat, final double topLeftLon,
-            final double bottomRightLat, final double bottomRightLon) {
+    Predicate<Info<T, R>> createRegionFilter(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon) {
+        return regionFilter(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+    }
+
+    /**
+     * Returns the predicate of {@link #createRegionFilter(double, double,
+     * double, double)} for use where there is no {@link Geomem} instance.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @return predicate
+     */
+    static <T, R> Predicate<Info<T, R>> regionFilter(final double topLeftLat,
+            final double topLeftLon, final double bottomRightLat, final double bottomRightLon) {
         return new Predicate<Info<T, R>>() {
 
             @Override
@@ -148,12 +1737,32 @@ public class Geomem<T, R> {
      * @return iterable
      */
     private Iterable<Info<T, R>> find(long start, long finish, String withinHash) {
-        long key = Base32.decodeBase32(withinHash);
-        SortedMap<Long, Info<T, R>> sortedByTime = mapByGeoHash.get(key);
-        if (sortedByTime == null)
+        ConcurrentNavigableMap<Key, Info<T, R>> cell = cell(start, finish, withinHash);
+        if (cell == null)
             return Collections.emptyList();
         else
-            return sortedByTime.subMap(start, finish).values();
+            return cell.values();
+    }
+
+    /**
+     * Returns the records where start&lt;=time &lt;finish and position is
+     * inside the geohash withinHash sorted by time.
+     * 
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param withinHash
+     *            returned records are within hash
+     * @return records by key or null if no records have been added to the hash
+     */
+    private ConcurrentNavigableMap<Key, Info<T, R>> cell(long start, long finish,
+            String withinHash) {
+        ConcurrentNavigableMap<Key, Info<T, R>> sortedByTime = mapByGeoHash.get(key(withinHash));
+        if (sortedByTime == null)
+            return null;
+        else
+            return sortedByTime.subMap(Key.first(start), Key.first(finish));
     }
 
     /**
@@ -221,39 +1830,748 @@ public class Geomem<T, R> {
      *            info record to add
      */
     public void add(Info<T, R> info) {
-        String hash = GeoHash.encodeHash(info.lat(), info.lon());
+        if (overBudgetPolicy == OverBudgetPolicy.REJECT)
+            checkBudget(false);
+        Object event = FlightRecorderEvents.beginAdd();
+        long startNanos = metrics == GeomemMetrics.NONE ? 0 : System.nanoTime();
+        if (writeAheadLog != null)
+            writeAheadLog.append(info);
+        add(info, sequence.getAndIncrement(), hash(info.lat(), info.lon()));
+        if (metrics != GeomemMetrics.NONE)
+            metrics.inserted(1, System.nanoTime() - startNanos);
+        FlightRecorderEvents.commitAdd(event, 1);
+        if (overBudgetPolicy == OverBudgetPolicy.EVICT_OLDEST)
+            checkBudget(false);
+    }
+
+    /**
+     * Adds all the records to the in-memory store. Records with the same time
+     * (for example a batch stamped with a single time) are all retained. A
+     * block of sequence numbers is reserved once for the whole batch rather
+     * than per record.
+     * 
+     * <p>
+     * The batch is loaded bottom-up: geohashes are encoded for the whole batch,
+     * the records are sorted by geohash and time in parallel and the records
+     * for each cell are added together. Cells that do not exist yet are built
+     * directly from the sorted records, so loading a large batch into an empty
+     * store is much faster than adding the records one at a time.
+     * 
+     * @param infos
+     *            info records to add
+     */
+    public void addAll(Iterable<Info<T, R>> infos) {
+        addAll(Lists.newArrayList(infos), null);
+    }
+
+    /**
+     * Adds the records as a batch (see {@link #addAll(Iterable)}) given the
+     * full length geohashes of their positions, for example as stored in a
+     * snapshot, so that they are not encoded again.
+     * 
+     * @param list
+     *            info records to add
+     * @param hashes
+     *            full length geohash of each record as returned by
+     *            {@link #hash(double, double)}, or null to encode them
+     */
+    void addAll(List<Info<T, R>> list, long[] hashes) {
+        Preconditions.checkArgument(hashes == null || hashes.length == list.size(),
+                "a hash is required for each record");
+        if (overBudgetPolicy == OverBudgetPolicy.REJECT)
+            checkBudget(true);
+        Object event = FlightRecorderEvents.beginAdd();
+        long startNanos = metrics == GeomemMetrics.NONE ? 0 : System.nanoTime();
+        if (writeAheadLog != null)
+            writeAheadLog.appendAll(list);
+        index(list, hashes);
+        if (metrics != GeomemMetrics.NONE)
+            metrics.inserted(list.size(), System.nanoTime() - startNanos);
+        FlightRecorderEvents.commitAdd(event, list.size());
+        if (overBudgetPolicy == OverBudgetPolicy.EVICT_OLDEST)
+            checkBudget(true);
+    }
+
+    /**
+     * Adds the records given as columns to the in-memory store as a batch (see
+     * {@link #addAll(Iterable)}). All arguments must have the same length.
+     * 
+     * @param lats
+     *            latitudes
+     * @param lons
+     *            longitudes
+     * @param times
+     *            times in epoch ms
+     * @param values
+     *            objects
+     * @param ids
+     *            identifiers, null if the records have no ids
+     */
+    public void addAll(double[] lats, double[] lons, long[] times, List<T> values,
+            List<R> ids) {
+        int n = lats.length;
+        Preconditions.checkArgument(lons.length == n && times.length == n
+                && values.size() == n && (ids == null || ids.size() == n),
+                "all arguments must have the same length");
+        List<Info<T, R>> list = Lists.newArrayListWithCapacity(n);
+        for (int i = 0; i < n; i++) {
+            Optional<R> id = ids == null ? Optional.<R> absent() : Optional.fromNullable(ids.get(i));
+            list.add(new Info<T, R>(lats[i], lons[i], times[i], values.get(i), id));
+        }
+        addAll(list);
+    }
+
+    /**
+     * Indexes a batch of records bottom-up. The full length hashes of the
+     * batch are encoded up front and the records sorted by hash and time, so
+     * that every cell at every hash length is a contiguous, time ordered range
+     * of the batch. Cells absent from the store are built directly from that
+     * range (in linear time) rather than by inserting one record at a time.
+     * The hashes are encoded here unless given.
+     */
+    private void index(List<Info<T, R>> list, long[] hashes) {
+        int n = list.size();
+        if (n == 0)
+            return;
+        if (hashes == null) {
+            hashes = new long[n];
+            for (int i = 0; i < n; i++)
+                hashes[i] = hash(list.get(i).lat(), list.get(i).lon());
+        }
+        long seq = sequence.getAndAdd(n);
+        if (upsert) {
+            // records replace each other so are added in order one at a time
+            for (int i = 0; i < n; i++)
+                add(list.get(i), seq + i, hashes[i]);
+            return;
+        }
+        long[] times = new long[n];
+        Key[] keys = new Key[n];
+        for (int i = 0; i < n; i++) {
+            Info<T, R> info = list.get(i);
+            times[i] = info.time();
+            keys[i] = new Key(info.time(), seq + i);
+        }
+        int[] order = BulkSort.sortByHashThenTime(hashes, times);
+        for (int length = GeoHash.MAX_HASH_LENGTH; length >= 1; length--) {
+            if (length < GeoHash.MAX_HASH_LENGTH)
+                // merge the time ordered child cells into their parents
+                BulkSort.mergeWithinPrefixes(order, hashes, times, length);
+            int shift = 5 * (GeoHash.MAX_HASH_LENGTH - length);
+            int start = 0;
+            while (start < n) {
+                long prefix = hashes[order[start]] >>> shift;
+                int finish = start + 1;
+                while (finish < n && hashes[order[finish]] >>> shift == prefix)
+                    finish++;
+                long k = prefix << 4 | length;
+                addToMap(k, new SortedRange<T, R>(list, keys, order, start, finish));
+                getOrCreateStats(k).add(finish - start, times[order[start]],
+                        times[order[finish - 1]]);
+                start = finish;
+            }
+        }
+        // only the latest record of each id in the batch can become latest
+        Map<R, Integer> latestInBatch = Maps.newHashMap();
+        for (int i = 0; i < n; i++) {
+            Info<T, R> info = list.get(i);
+            timeHistogram.add(info.time());
+            addToIdIndex(info, keys[i]);
+            addPayload(info, 1);
+            if (info.id().isPresent()) {
+                Integer j = latestInBatch.get(info.id().get());
+                if (j == null || times[j] <= info.time())
+                    latestInBatch.put(info.id().get(), i);
+            }
+        }
+        for (int i : latestInBatch.values())
+            updateLatest(list.get(i), hashes[i]);
+        for (int i = 0; i < n; i++)
+            subscriptions.dispatch(list.get(i), hashes[i]);
+    }
+
+    private void add(Info<T, R> info, long seq, long hash) {
+        Key key = new Key(info.time(), seq);
+        if (upsert && info.id().isPresent()) {
+            if (upsert(info, key, hash))
+                subscriptions.dispatch(info, hash);
+            return;
+        }
+        addToMap(mapByGeoHash, info, key, hash);
+        addToStats(info, hash);
+        addToIdIndex(info, key);
+        addPayload(info, 1);
+        updateLatest(info, hash);
+        subscriptions.dispatch(info, hash);
+    }
+
+    /**
+     * Makes info the current record of its id in upsert mode, moving the id
+     * from the position of its previous record if it has one. Runs atomically
+     * per id under the id's lock in the id index. Records are keyed by time
+     * so the record is re-keyed in the cell of every geohash length; where
+     * the previous and new geohashes share a prefix the counts of the cells of
+     * that prefix are left unchanged.
+     * 
+     * @param info
+     *            record being added
+     * @param key
+     *            key of info
+     * @param hash
+     *            full length geohash of the position of info
+     * @return false if info was ignored because the id has a later record
+     */
+    private boolean upsert(Info<T, R> info, Key key, long hash) {
+        R id = info.id().get();
+        ReentrantLock lock = idIndex.lockId(id);
+        try {
+            Info<T, R> previous = latestById.get(id);
+            if (previous != null && previous.time() > info.time())
+                return false;
+            Key previousKey = idIndex.replace(id, key, info);
+            if (previous == null) {
+                addToMap(mapByGeoHash, info, key, hash);
+                addToStats(info, hash);
+                moveLatest(id, null, 0, info, hash);
+            } else {
+                long previousHash = hash(previous.lat(), previous.lon());
+                move(previous, previousKey, previousHash, info, key, hash);
+                moveLatest(id, previous, previousHash, info, hash);
+                addPayload(previous, -1);
+            }
+            addPayload(info, 1);
+            latestById.put(id, info);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a record in the spatial index and the counters from the position
+     * and key of previous to those of info.
+     */
+    private void move(Info<T, R> previous, Key previousKey, long previousHash, Info<T, R> info,
+            Key key, long hash) {
+        for (int i = 1; i <= GeoHash.MAX_HASH_LENGTH; i++) {
+            long k = key(hash, GeoHash.MAX_HASH_LENGTH, i);
+            long previousK = key(previousHash, GeoHash.MAX_HASH_LENGTH, i);
+            // add before remove so that concurrent queries do not miss the id
+            if (k == previousK) {
+                // same cell so the count is unchanged
+                ConcurrentNavigableMap<Key, Info<T, R>> m = mapByGeoHash.get(k);
+                m.put(key, info);
+                m.remove(previousKey);
+                statsByGeoHash.get(k).add(0, info.time(), info.time());
+            } else {
+                getOrCreateCell(k).put(key, info);
+                getOrCreateStats(k).add(info.time());
+                mapByGeoHash.get(previousK).remove(previousKey);
+                statsByGeoHash.get(previousK).remove();
+            }
+        }
+        timeHistogram.remove(previous.time());
+        timeHistogram.add(info.time());
+    }
 
-        addToMap(mapByGeoHash, info, hash);
-        addToMapById(mapById, info, hash);
+    private ConcurrentNavigableMap<Key, Info<T, R>> getOrCreateCell(long key) {
+        ConcurrentNavigableMap<Key, Info<T, R>> m = mapByGeoHash.get(key);
+        if (m == null) {
+            ConcurrentNavigableMap<Key, Info<T, R>> created = new ConcurrentSkipListMap<Key, Info<T, R>>();
+            m = mapByGeoHash.putIfAbsent(key, created);
+            if (m == null)
+                m = created;
+        }
+        return m;
+    }
+
+    /**
+     * Makes info the latest record for its id if no later record exists for
+     * that id. The update of the latest position index happens atomically per
+     * id under the id's lock in the id index and only the cells for the hash
+     * characters that differ from the previous latest position are moved.
+     * 
+     * @param info
+     *            record just added
+     * @param hash
+     *            full length geohash of the position of info
+     */
+    private void updateLatest(Info<T, R> info, long hash) {
+        if (!info.id().isPresent())
+            return;
+        R id = info.id().get();
+        ReentrantLock lock = idIndex.lockId(id);
+        try {
+            Info<T, R> previous = latestById.get(id);
+            if (previous == null)
+                moveLatest(id, null, 0, info, hash);
+            else if (previous.time() > info.time())
+                return;
+            else
+                moveLatest(id, previous, hash(previous.lat(), previous.lon()), info, hash);
+            latestById.put(id, info);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private void addToMapById(Map<R, Map<Long, SortedMap<Long, Info<T, R>>>> mapById,
-            Info<T, R> info, String hash) {
-        if (info.id().isPresent()) {
-            Map<Long, SortedMap<Long, Info<T, R>>> m = mapById.get(info.id().get());
-            synchronized (lock) {
-                if (m == null) {
-                    m = Maps.newConcurrentMap();
-                    mapById.put(info.id().get(), m);
+    private void moveLatest(R id, Info<T, R> previous, long previousHash, Info<T, R> info,
+            long hash) {
+        for (int i = 1; i <= GeoHash.MAX_HASH_LENGTH; i++) {
+            long k = key(hash, GeoHash.MAX_HASH_LENGTH, i);
+            if (previous != null) {
+                long previousKey = key(previousHash, GeoHash.MAX_HASH_LENGTH, i);
+                if (previousKey != k) {
+                    ConcurrentMap<R, Info<T, R>> m = latestByGeoHash.get(previousKey);
+                    if (m != null)
+                        m.remove(id, previous);
                 }
             }
-            addToMap(m, info, hash);
+            // where the prefix is shared the put replaces previous
+            getOrCreateLatest(k).put(id, info);
+        }
+    }
+
+    private ConcurrentMap<R, Info<T, R>> getOrCreateLatest(long key) {
+        ConcurrentMap<R, Info<T, R>> m = latestByGeoHash.get(key);
+        if (m == null) {
+            ConcurrentMap<R, Info<T, R>> created = Maps.newConcurrentMap();
+            m = latestByGeoHash.putIfAbsent(key, created);
+            if (m == null)
+                m = created;
+        }
+        return m;
+    }
+
+    private void addToIdIndex(Info<T, R> info, Key key) {
+        if (info.id().isPresent())
+            idIndex.add(info.id().get(), key, info);
+    }
+
+    private void addPayload(Info<T, R> info, int sign) {
+        if (payloadSizer != null)
+            payloadBytes.add(sign * (long) payloadSizer.apply(info.value()));
+    }
+
+    private void addToStats(Info<T, R> info, long hash) {
+        for (int i = 1; i <= GeoHash.MAX_HASH_LENGTH; i++) {
+            getOrCreateStats(key(hash, GeoHash.MAX_HASH_LENGTH, i)).add(info.time());
+        }
+        timeHistogram.add(info.time());
+    }
+
+    private CellStats getOrCreateStats(long key) {
+        CellStats stats = statsByGeoHash.get(key);
+        if (stats == null) {
+            CellStats created = new CellStats();
+            stats = statsByGeoHash.putIfAbsent(key, created);
+            if (stats == null)
+                stats = created;
         }
+        return stats;
     }
 
-    private void addToMap(Map<Long, SortedMap<Long, Info<T, R>>> map, Info<T, R> info,
-            String hash) {
+    private void addToMap(ConcurrentMap<Long, ConcurrentNavigableMap<Key, Info<T, R>>> map,
+            Info<T, R> info, Key key, long hash) {
 
         // full hash length is 12 so this will insert 12 entries
-        for (int i = 1; i <= hash.length(); i++) {
-            long key = Base32.decodeBase32(hash.substring(0, i));
-            synchronized (lock) {
-                if (map.get(key) == null) {
-                    map.put(key, new ConcurrentSkipListMap<Long, Info<T, R>>());
+        for (int i = 1; i <= GeoHash.MAX_HASH_LENGTH; i++) {
+            long k = key(hash, GeoHash.MAX_HASH_LENGTH, i);
+            ConcurrentNavigableMap<Key, Info<T, R>> m = map.get(k);
+            if (m == null) {
+                ConcurrentNavigableMap<Key, Info<T, R>> created = new ConcurrentSkipListMap<Key, Info<T, R>>();
+                m = map.putIfAbsent(k, created);
+                if (m == null)
+                    m = created;
+            }
+            m.put(key, info);
+        }
+    }
+
+    /**
+     * Adds the time ordered records of a batch to the cell with the given key.
+     * If the cell does not exist it is built from the records in linear time.
+     */
+    private void addToMap(long key, SortedRange<T, R> range) {
+        ConcurrentNavigableMap<Key, Info<T, R>> m = mapByGeoHash.get(key);
+        if (m == null) {
+            ConcurrentNavigableMap<Key, Info<T, R>> created = new ConcurrentSkipListMap<Key, Info<T, R>>(
+                    range);
+            m = mapByGeoHash.putIfAbsent(key, created);
+            if (m == null)
+                return;
+        }
+        m.putAll(range);
+    }
+
+    /**
+     * Thins the records of each id by age according to the tiers: records of
+     * an id older than a tier's minimum age are reduced to the earliest record
+     * in each of the tier's intervals, for example one per minute after a day
+     * and one per 10 minutes after a week. The latest record of an id and
+     * records without an id are never removed.
+     * 
+     * <p>
+     * Each tier remembers how far it has compacted, so a call only thins the
+     * time partition that has passed the tier's minimum age since the
+     * previous call (the first call thins all older records). Records added
+     * later with times in an already compacted partition are not thinned.
+     * 
+     * @param now
+     *            current time in epoch ms
+     * @param tiers
+     *            compaction tiers
+     * @return number of records removed
+     */
+    public long compact(long now, List<CompactionTier> tiers) {
+        List<CompactionTier> sorted = Lists.newArrayList(tiers);
+        // thin finer tiers first so that coarser tiers keep the same records
+        Collections.sort(sorted, new Comparator<CompactionTier>() {
+            @Override
+            public int compare(CompactionTier a, CompactionTier b) {
+                return Long.compare(a.minAgeMs(), b.minAgeMs());
+            }
+        });
+        long count = 0;
+        synchronized (compactedUntil) {
+            for (CompactionTier tier : sorted) {
+                long interval = tier.intervalMs();
+                long finish = Math.floorDiv(now - tier.minAgeMs(), interval) * interval;
+                Long until = compactedUntil.get(tier);
+                long start = until == null ? Long.MIN_VALUE : until;
+                if (start < finish) {
+                    List<Entry<Key, Info<T, R>>> removed = Lists.newArrayList();
+                    idIndex.compact(start, finish, interval, latestById, removed);
+                    for (Entry<Key, Info<T, R>> entry : removed)
+                        remove(entry.getKey(), entry.getValue());
+                    count += removed.size();
+                    compactedUntil.put(tier, finish);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs {@link #compact(long, List)} with the current time every periodMs
+     * on the given executor until the returned future is cancelled.
+     * 
+     * @param executor
+     *            runs the compactions
+     * @param periodMs
+     *            interval between compactions in ms
+     * @param tiers
+     *            compaction tiers
+     * @return future to cancel the compactions
+     */
+    public ScheduledFuture<?> scheduleCompaction(ScheduledExecutorService executor,
+            long periodMs, final List<CompactionTier> tiers) {
+        return executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compact(System.currentTimeMillis(), tiers);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes a record from the spatial index and the counters. Returns false
+     * if the record had already been removed.
+     */
+    private boolean remove(Key key, Info<T, R> info) {
+        long hash = hash(info.lat(), info.lon());
+        for (int i = 1; i <= GeoHash.MAX_HASH_LENGTH; i++) {
+            long k = key(hash, GeoHash.MAX_HASH_LENGTH, i);
+            ConcurrentNavigableMap<Key, Info<T, R>> m = mapByGeoHash.get(k);
+            if (m != null && m.remove(key) != null)
+                statsByGeoHash.get(k).remove();
+            else if (i == 1)
+                // removed concurrently (by compaction or eviction)
+                return false;
+        }
+        timeHistogram.remove(info.time());
+        addPayload(info, -1);
+        return true;
+    }
+
+    /**
+     * Returns the estimated heap bytes used by each structure of the store.
+     * The estimate is computed from counts of the records, cells, ids and
+     * track slots held (maintained as they change), so is cheap to call.
+     * Payloads are included only if a payload sizer was set on the builder.
+     * 
+     * @return estimated memory usage
+     */
+    public MemoryUsage memoryUsage() {
+        long records = 0;
+        // every record is in exactly one length 1 cell
+        for (long i = 0; i < 32; i++) {
+            CellStats stats = statsByGeoHash.get(i << 4 | 1);
+            if (stats != null)
+                records += stats.count();
+        }
+        long spatialIndexBytes = mapByGeoHash.size() * MemoryUsage.CELL_BYTES + records
+                * (GeoHash.MAX_HASH_LENGTH * MemoryUsage.SKIP_LIST_ENTRY_BYTES
+                        + MemoryUsage.KEY_BYTES);
+        long idIndexBytes = idIndex.size() * MemoryUsage.ID_BYTES
+                + idIndex.slots() * MemoryUsage.TRACK_SLOT_BYTES;
+        // each id with a latest record is in one cell at each length
+        long latestIndexBytes = latestById.size() * (GeoHash.MAX_HASH_LENGTH + 1)
+                * MemoryUsage.MAP_ENTRY_BYTES
+                + latestByGeoHash.size() * MemoryUsage.LATEST_CELL_BYTES;
+        long recordBytes = records * MemoryUsage.INFO_BYTES + payloadBytes.sum();
+        return new MemoryUsage(records, spatialIndexBytes, idIndexBytes, latestIndexBytes,
+                recordBytes);
+    }
+
+    /**
+     * Applies the over budget policy if the memory budget is exceeded. While
+     * within budget usage is only measured every BUDGET_CHECK_INTERVAL records
+     * or when forced.
+     */
+    private void checkBudget(boolean force) {
+        long seq = sequence.get();
+        if (!force && !overBudget && seq < nextBudgetCheck)
+            return;
+        nextBudgetCheck = seq + BUDGET_CHECK_INTERVAL;
+        MemoryUsage usage = memoryUsage();
+        overBudget = usage.totalBytes() > memoryBudget;
+        if (overBudget) {
+            if (overBudgetPolicy == OverBudgetPolicy.REJECT)
+                throw new MemoryBudgetExceededException("estimated memory usage "
+                        + usage.totalBytes() + " exceeds budget " + memoryBudget);
+            else
+                evict();
+        }
+    }
+
+    /**
+     * Removes the oldest records until usage is within budget. The number to
+     * remove is estimated from the average bytes per record and usage is
+     * measured again after removing them.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            MemoryUsage usage = memoryUsage();
+            while (usage.totalBytes() > memoryBudget && usage.records() > 0) {
+                long bytesPerRecord = Math.max(1, usage.totalBytes() / usage.records());
+                long n = (usage.totalBytes() - memoryBudget) / bytesPerRecord + 1;
+                for (long i = 0; i < n; i++) {
+                    if (!evictOldest())
+                        break;
                 }
+                usage = memoryUsage();
+            }
+            overBudget = usage.totalBytes() > memoryBudget;
+        }
+    }
+
+    /**
+     * Removes the record with the earliest key from every index. Returns
+     * false if the store is empty.
+     */
+    private boolean evictOldest() {
+        Entry<Key, Info<T, R>> oldest = null;
+        // the earliest record is first in one of the length 1 cells
+        for (long i = 0; i < 32; i++) {
+            ConcurrentNavigableMap<Key, Info<T, R>> m = mapByGeoHash.get(i << 4 | 1);
+            if (m != null) {
+                Entry<Key, Info<T, R>> first = m.firstEntry();
+                if (first != null
+                        && (oldest == null || first.getKey().compareTo(oldest.getKey()) < 0))
+                    oldest = first;
+            }
+        }
+        if (oldest == null)
+            return false;
+        final Key key = oldest.getKey();
+        final Info<T, R> info = oldest.getValue();
+        if (!info.id().isPresent()) {
+            remove(key, info);
+            return true;
+        }
+        // runs atomically with adds of the same id
+        R id = info.id().get();
+        ReentrantLock lock = idIndex.lockId(id);
+        try {
+            if (!remove(key, info))
+                return true;
+            idIndex.remove(id, key);
+            dropLatest(id, info);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Stops reporting info as the latest record of its id (in
+     * {@link #findLatest(Object)} and the latest position queries) if it
+     * still is the latest. The record itself stays in the store. Used by
+     * {@link ShardedGeomem} when an id moves to another shard.
+     * 
+     * @param id
+     *            identifier
+     * @param info
+     *            record that is no longer the latest of id
+     */
+    void removeLatest(R id, Info<T, R> info) {
+        ReentrantLock lock = idIndex.lockId(id);
+        try {
+            dropLatest(id, info);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // caller holds the lock of id in idIndex
+    private void dropLatest(R id, Info<T, R> info) {
+        if (latestById.get(id) != info)
+            return;
+        long hash = hash(info.lat(), info.lon());
+        for (int i = 1; i <= GeoHash.MAX_HASH_LENGTH; i++) {
+            ConcurrentMap<R, Info<T, R>> m = latestByGeoHash
+                    .get(key(hash, GeoHash.MAX_HASH_LENGTH, i));
+            if (m != null)
+                m.remove(id, info);
+        }
+        latestById.remove(id, info);
+    }
+
+    /**
+     * Returns an immutable read-optimised copy of all the records.
+     * 
+     * @return frozen copy
+     */
+    public FrozenGeomem<T, R> freeze() {
+        return new FrozenGeomem<T, R>(Columns.fromCells(entries()));
+    }
+
+    /**
+     * Returns an immutable read-optimised copy of the records where start
+     * &lt;= time &lt; finish, for example a time partition that will no longer
+     * change.
+     * 
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return frozen copy
+     */
+    public FrozenGeomem<T, R> freeze(long start, long finish) {
+        return new FrozenGeomem<T, R>(Columns.fromCells(entries(start, finish)));
+    }
+
+    /**
+     * Returns all records with their keys, each record exactly once.
+     * 
+     * @return all records
+     */
+    Iterable<Entry<Key, Info<T, R>>> entries() {
+        return entries(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns all records where start &lt;= time &lt; finish with their keys,
+     * each record exactly once.
+     * 
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return records
+     */
+    Iterable<Entry<Key, Info<T, R>>> entries(long start, long finish) {
+        // every record is in exactly one of the length 1 hashes
+        List<Iterable<Entry<Key, Info<T, R>>>> list = Lists.newArrayList();
+        for (long i = 0; i < 32; i++) {
+            ConcurrentNavigableMap<Key, Info<T, R>> m = mapByGeoHash.get(i << 4 | 1);
+            if (m != null)
+                list.add(m.subMap(Key.first(start), Key.first(finish)).entrySet());
+        }
+        return Iterables.concat(list);
+    }
+
+    /**
+     * Returns the map key for a geohash. The length of the hash is held in the
+     * 4 least significant bits so that hashes that differ only by leading
+     * zeros (for example "b" and "0b") have different keys.
+     * 
+     * @param hash
+     *            geohash
+     * @return map key
+     */
+    static long key(String hash) {
+        return Base32.decodeBase32(hash) << 4 | hash.length();
+    }
+
+    /**
+     * Returns the map key of the prefix of given length of a geohash.
+     * 
+     * @param full
+     *            the geohash decoded by {@link Base32#decodeBase32(String)}
+     * @param hashLength
+     *            the length of the geohash
+     * @param prefixLength
+     *            length of the prefix
+     * @return map key
+     */
+    static long key(long full, int hashLength, int prefixLength) {
+        return full >>> (5 * (hashLength - prefixLength)) << 4 | prefixLength;
+    }
+
+    /**
+     * Returns the full length (12 character) geohash of a position as decoded
+     * by {@link Base32#decodeBase32(String)}, the same value as decoding
+     * {@link GeoHash#encodeHash(double, double)} but without creating the
+     * string.
+     * 
+     * @param lat
+     *            latitude
+     * @param lon
+     *            longitude
+     * @return full length geohash
+     */
+    static long hash(double lat, double lon) {
+        Preconditions.checkArgument(lat >= -90 && lat <= 90,
+                "latitude must be between -90 and 90 inclusive");
+        lon = to180(lon);
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        long hash = 0;
+        for (int i = 0; i < 5 * GeoHash.MAX_HASH_LENGTH; i++) {
+            hash <<= 1;
+            if ((i & 1) == 0) {
+                double mid = (minLon + maxLon) / 2;
+                if (lon >= mid) {
+                    hash |= 1;
+                    minLon = mid;
+                } else
+                    maxLon = mid;
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (lat >= mid) {
+                    hash |= 1;
+                    minLat = mid;
+                } else
+                    maxLat = mid;
             }
-            map.get(key).put(info.time(), info);
         }
+        return hash;
+    }
+
+    /**
+     * Converts an angle in degrees to range -180 &lt; x &lt;= 180 as
+     * {@link GeoHash} does.
+     */
+    private static double to180(double d) {
+        if (d < 0)
+            return -to180(Math.abs(d));
+        else if (d > 180) {
+            long n = Math.round(Math.floor((d + 180) / 360.0));
+            return d - n * 360;
+        } else
+            return d;
     }
 
 }
@@ -0,0 +1,74 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Receives measurements of the hot paths of a {@link Geomem} so that query
+ * coverage, cell scans and the region filter can be tuned for a workload. Set
+ * with {@link Geomem.Builder#metrics(GeomemMetrics)}. Implementations are
+ * called on the adding and querying threads so must be thread safe and cheap;
+ * {@link StripedGeomemMetrics} is one. The default is {@link #NONE} which
+ * records nothing and is not timed.
+ */
+public interface GeomemMetrics {
+
+    /**
+     * Records nothing.
+     */
+    GeomemMetrics NONE = new GeomemMetrics() {
+
+        @Override
+        public void inserted(int records, long nanos) {
+            // do nothing
+        }
+
+        @Override
+        public void queried(int cells, long scanned, long returned, long nanos) {
+            // do nothing
+        }
+
+        @Override
+        public void lockContended(long waitNanos) {
+            // do nothing
+        }
+    };
+
+    /**
+     * Called after an add or a batch add.
+     * 
+     * @param records
+     *            number of records added
+     * @param nanos
+     *            time taken in nanoseconds
+     */
+    void inserted(int records, long nanos);
+
+    /**
+     * Called when the results of a bounding box query have been consumed.
+     * Lazy queries are recorded when their results are exhausted (or their
+     * limit is reached) and their time includes the time taken by the
+     * consumer; queries abandoned before then are not recorded.
+     * 
+     * @param cells
+     *            number of geohash cells covering the bounding box
+     * @param scanned
+     *            number of records in the time range of the cells that were
+     *            tested by the region filter
+     * @param returned
+     *            number of records returned
+     * @param nanos
+     *            time taken in nanoseconds
+     */
+    void queried(int cells, long scanned, long returned, long nanos);
+
+    /**
+     * Called when a thread had to wait for a lock of the id index held by
+     * another thread, for example adds of the same id on different threads.
+     * These locks also serialize the updates of the latest position and the
+     * upserts of an id. Only these locks are measured: the compaction and
+     * eviction locks are not.
+     * 
+     * @param waitNanos
+     *            time waited in nanoseconds
+     */
+    void lockContended(long waitNanos);
+
+}
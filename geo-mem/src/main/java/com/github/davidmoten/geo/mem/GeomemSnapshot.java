@@ -0,0 +1,431 @@
+package com.github.davidmoten.geo.mem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Writes a {@link Geomem} to a compact binary snapshot file and restores a
+ * {@link Geomem} from such a file. The snapshot is columnar, with the records
+ * sorted by geohash and then time:
+ * 
+ * <pre>
+ * int      magic
+ * int      version
+ * int      n (number of records)
+ * long[n]  geohashes (full length, as decoded by Base32.decodeBase32)
+ * long[n]  times
+ * double[n] latitudes
+ * double[n] longitudes
+ * long[n+1] value offsets, followed by the serialized values
+ * long[n+1] id offsets (an absent id has zero length), followed by the
+ *           serialized ids
+ * byte[n]  1 if the id is present, 0 otherwise
+ * </pre>
+ * 
+ * The file is written sequentially (apart from the offsets, which are filled
+ * in once their payloads have been streamed), replaced atomically and read
+ * back via memory mapping.
+ */
+public final class GeomemSnapshot {
+
+    private static final int MAGIC = 0x47454f4d;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+
+    /**
+     * Size of the memory mapped chunks that sections of the file are read
+     * through (a multiple of 8).
+     */
+    private static final int CHUNK_BYTES = 1 << 30;
+
+    private GeomemSnapshot() {
+        // prevent instantiation
+    }
+
+    /**
+     * Writes all the records of geomem to the file, replacing its contents.
+     * The snapshot is written to a temporary file in the same directory,
+     * synced to disk and then atomically moved to the file, so the file holds
+     * either the previous contents or the whole new snapshot. The directory
+     * is then synced (where the platform supports it) so the move survives a
+     * crash. Values and ids are serialized one at a time as they are written.
+     * 
+     * @param geomem
+     *            records to write
+     * @param file
+     *            destination file
+     * @param valueSerializer
+     *            serializes the record values
+     * @param idSerializer
+     *            serializes the record ids
+     * @param <T>
+     *            The type of the record with position and time.
+     * @param <R>
+     *            The type of the id of the record with position and time.
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public static <T, R> void write(Geomem<T, R> geomem, File file,
+            Serializer<T> valueSerializer, Serializer<R> idSerializer) throws IOException {
+        write(Columns.from(geomem.entries()), file, valueSerializer, idSerializer);
+    }
+
+    static <T, R> void write(final Columns<T, R> columns, File file,
+            final Serializer<T> valueSerializer, final Serializer<R> idSerializer)
+            throws IOException {
+        int n = columns.size();
+        IntFunction<byte[]> values = new IntFunction<byte[]>() {
+            @Override
+            public byte[] apply(int i) {
+                return valueSerializer.serialize(columns.value(i));
+            }
+        };
+        IntFunction<byte[]> ids = new IntFunction<byte[]>() {
+            @Override
+            public byte[] apply(int i) {
+                Optional<R> id = columns.id(i);
+                return id.isPresent() ? idSerializer.serialize(id.get()) : null;
+            }
+        };
+        // write a temporary file in the same directory and move it over the
+        // destination so that a crash never leaves a partly written snapshot
+        File directory = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+        boolean moved = false;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(n);
+                for (long hash : columns.hashes)
+                    out.writeLong(hash);
+                for (long time : columns.times)
+                    out.writeLong(time);
+                for (double lat : columns.lats)
+                    out.writeDouble(lat);
+                for (double lon : columns.lons)
+                    out.writeDouble(lon);
+                long position = HEADER_BYTES + 32L * n;
+                position = writeBytes(out, fos.getChannel(), position, n, values);
+                writeBytes(out, fos.getChannel(), position, n, ids);
+                for (int i = 0; i < n; i++)
+                    out.writeByte(columns.id(i).isPresent() ? 1 : 0);
+                out.flush();
+                fos.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        } finally {
+            if (!moved)
+                tmp.delete();
+        }
+        syncDirectory(directory);
+    }
+
+    /**
+     * Writes the n+1 offsets followed by the n payloads given by bytes (null
+     * for an absent payload), starting at the given position in the file. The
+     * payloads are streamed after space left for the offsets, which are
+     * written into that space afterwards, so only the offsets are held in
+     * memory.
+     * 
+     * @param out
+     *            stream writing to the end of the file
+     * @param channel
+     *            channel of the file
+     * @param position
+     *            position in the file of the end of out
+     * @param n
+     *            number of payloads
+     * @param bytes
+     *            returns payload i
+     * @return position in the file after the payloads
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    private static long writeBytes(DataOutputStream out, FileChannel channel, long position,
+            int n, IntFunction<byte[]> bytes) throws IOException {
+        long[] offsets = new long[n + 1];
+        for (int i = 0; i <= n; i++)
+            out.writeLong(0);
+        for (int i = 0; i < n; i++) {
+            byte[] b = bytes.apply(i);
+            offsets[i + 1] = offsets[i];
+            if (b != null) {
+                out.write(b);
+                offsets[i + 1] += b.length;
+            }
+        }
+        out.flush();
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        long p = position;
+        for (int i = 0; i <= n; i++) {
+            buffer.putLong(offsets[i]);
+            if (!buffer.hasRemaining() || i == n) {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    p += channel.write(buffer, p);
+                buffer.clear();
+            }
+        }
+        return position + 8L * (n + 1) + offsets[n];
+    }
+
+    /**
+     * Syncs the directory to disk so that a file moved into it is not lost in
+     * a crash.
+     * 
+     * @param directory
+     *            directory to sync
+     * @return false if the platform does not support syncing a directory (for
+     *         example Windows)
+     */
+    private static boolean syncDirectory(File directory) {
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a new {@link Geomem} containing the records of the snapshot
+     * file.
+     * 
+     * @param file
+     *            snapshot file written by
+     *            {@link #write(Geomem, File, Serializer, Serializer)}
+     * @param valueSerializer
+     *            deserializes the record values
+     * @param idSerializer
+     *            deserializes the record ids
+     * @param <T>
+     *            The type of the record with position and time.
+     * @param <R>
+     *            The type of the id of the record with position and time.
+     * @return restored geomem
+     * @throws IOException
+     *             if the file cannot be read or is not a snapshot
+     */
+    public static <T, R> Geomem<T, R> read(File file, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer) throws IOException {
+        return read(file, valueSerializer, idSerializer, new Geomem<T, R>());
+    }
+
+    /**
+     * Adds the records of the snapshot file to geomem and returns it. Use
+     * this to restore into a {@link Geomem} built with
+     * {@link Geomem#builder()} options such as upsert, metrics, a memory
+     * budget or a write ahead log, which apply to the restored records as to
+     * any other batch added with {@link Geomem#addAll(Iterable)}. The geohashes
+     * stored in the snapshot are used rather than encoded again.
+     * 
+     * @param file
+     *            snapshot file written by
+     *            {@link #write(Geomem, File, Serializer, Serializer)}
+     * @param valueSerializer
+     *            deserializes the record values
+     * @param idSerializer
+     *            deserializes the record ids
+     * @param geomem
+     *            the geomem to add the records to
+     * @param <T>
+     *            The type of the record with position and time.
+     * @param <R>
+     *            The type of the id of the record with position and time.
+     * @return geomem
+     * @throws IOException
+     *             if the file cannot be read or is not a snapshot
+     */
+    public static <T, R> Geomem<T, R> read(File file, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer, Geomem<T, R> geomem) throws IOException {
+        Records<T, R> records = readRecords(file, valueSerializer, idSerializer, CHUNK_BYTES);
+        geomem.addAll(records.infos, records.hashes);
+        return geomem;
+    }
+
+    static <T, R> List<Info<T, R>> readInfos(File file, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer) throws IOException {
+        return readInfos(file, valueSerializer, idSerializer, CHUNK_BYTES);
+    }
+
+    static <T, R> List<Info<T, R>> readInfos(File file, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer, int chunkBytes) throws IOException {
+        return readRecords(file, valueSerializer, idSerializer, chunkBytes).infos;
+    }
+
+    private static <T, R> Records<T, R> readRecords(File file, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer, int chunkBytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            Section header = map(channel, 0, HEADER_BYTES, chunkBytes);
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("not a geomem snapshot: " + file);
+            int version = header.getInt(4);
+            if (version != VERSION)
+                throw new IOException("unsupported snapshot version " + version);
+            int n = header.getInt(8);
+            long position = HEADER_BYTES;
+            Section hashColumn = map(channel, position, 8L * n, chunkBytes);
+            position += 8L * n;
+            Section times = map(channel, position, 8L * n, chunkBytes);
+            position += 8L * n;
+            Section lats = map(channel, position, 8L * n, chunkBytes);
+            position += 8L * n;
+            Section lons = map(channel, position, 8L * n, chunkBytes);
+            position += 8L * n;
+            Section valueOffsets = map(channel, position, 8L * (n + 1), chunkBytes);
+            long valuesLength = valueOffsets.getLong(8L * n);
+            position += 8L * (n + 1);
+            Section values = map(channel, position, valuesLength, chunkBytes);
+            position += valuesLength;
+            Section idOffsets = map(channel, position, 8L * (n + 1), chunkBytes);
+            long idsLength = idOffsets.getLong(8L * n);
+            position += 8L * (n + 1);
+            Section ids = map(channel, position, idsLength, chunkBytes);
+            position += idsLength;
+            Section idPresent = map(channel, position, n, chunkBytes);
+
+            List<Info<T, R>> list = Lists.newArrayListWithCapacity(n);
+            long[] hashes = new long[n];
+            for (int i = 0; i < n; i++) {
+                hashes[i] = hashColumn.getLong(8L * i);
+                T value = valueSerializer.deserialize(bytes(values, valueOffsets, i));
+                Optional<R> id;
+                if (idPresent.get(i) == 1)
+                    id = Optional.of(idSerializer.deserialize(bytes(ids, idOffsets, i)));
+                else
+                    id = Optional.absent();
+                list.add(new Info<T, R>(lats.getDouble(8L * i), lons.getDouble(8L * i),
+                        times.getLong(8L * i), value, id));
+            }
+            return new Records<T, R>(list, hashes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Section map(FileChannel channel, long position, long size, int chunkBytes)
+            throws IOException {
+        if (size < 0 || position + size > channel.size())
+            throw new IOException("snapshot is truncated");
+        int count = (int) ((size + chunkBytes - 1) / chunkBytes);
+        ByteBuffer[] chunks = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long offset = (long) i * chunkBytes;
+            chunks[i] = channel.map(MapMode.READ_ONLY, position + offset,
+                    Math.min(chunkBytes, size - offset));
+        }
+        return new Section(chunks, chunkBytes);
+    }
+
+    private static byte[] bytes(Section section, Section offsets, int i) throws IOException {
+        long start = offsets.getLong(8L * i);
+        long finish = offsets.getLong(8L * (i + 1));
+        if (finish - start > Integer.MAX_VALUE)
+            throw new IOException("snapshot record too large: " + (finish - start) + " bytes");
+        byte[] bytes = new byte[(int) (finish - start)];
+        section.get(start, bytes);
+        return bytes;
+    }
+
+    private static final class Records<T, R> {
+
+        final List<Info<T, R>> infos;
+
+        /**
+         * Full length geohashes of infos.
+         */
+        final long[] hashes;
+
+        Records(List<Info<T, R>> infos, long[] hashes) {
+            this.infos = infos;
+            this.hashes = hashes;
+        }
+    }
+
+    /**
+     * A section of the file mapped as consecutive chunks of chunkBytes bytes
+     * so that it may be longer than a single {@link ByteBuffer} allows. The
+     * chunk size is a multiple of 8 and the columns of longs and doubles start
+     * at the beginning of their sections, so their values never cross a
+     * chunk boundary.
+     */
+    private static final class Section {
+
+        private final ByteBuffer[] chunks;
+        private final int chunkBytes;
+
+        Section(ByteBuffer[] chunks, int chunkBytes) {
+            this.chunks = chunks;
+            this.chunkBytes = chunkBytes;
+        }
+
+        private ByteBuffer chunk(long position) {
+            return chunks[(int) (position / chunkBytes)];
+        }
+
+        private int offset(long position) {
+            return (int) (position % chunkBytes);
+        }
+
+        byte get(long position) {
+            return chunk(position).get(offset(position));
+        }
+
+        int getInt(long position) {
+            return chunk(position).getInt(offset(position));
+        }
+
+        long getLong(long position) {
+            return chunk(position).getLong(offset(position));
+        }
+
+        double getDouble(long position) {
+            return chunk(position).getDouble(offset(position));
+        }
+
+        /**
+         * Copies bytes starting at position into dst, across chunk boundaries
+         * where necessary.
+         */
+        void get(long position, byte[] dst) {
+            int copied = 0;
+            while (copied < dst.length) {
+                ByteBuffer b = chunk(position + copied).duplicate();
+                b.position(offset(position + copied));
+                int length = Math.min(dst.length - copied, b.remaining());
+                b.get(dst, copied, length);
+                copied += length;
+            }
+        }
+    }
+
+}
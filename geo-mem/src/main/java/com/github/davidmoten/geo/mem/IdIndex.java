@@ -0,0 +1,464 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Index of the records of each id in time order. Ids are encoded as dense
+ * ints by a dictionary and the records of each id are held in a
+ * {@link Track} of primitive arrays, so the cost of an id is a dictionary
+ * entry and one small object rather than a map per geohash length. Tracks are
+ * guarded by a fixed set of locks striped by code rather than a lock per id.
+ *
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+final class IdIndex<T, R> {
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int LOCK_STRIPES = 64;
+
+    private final ConcurrentMap<R, Integer> codes = Maps.newConcurrentMap();
+
+    /**
+     * Ids and their tracks by code in chunks of CHUNK_SIZE. Codes are published
+     * through codes after the chunk entries are written.
+     */
+    private volatile Object[][] ids = new Object[16][];
+    private volatile Track<?, ?>[][] tracks = new Track<?, ?>[16][];
+
+    /**
+     * Locks guarding the tracks, the track of code c is guarded by
+     * locks[c % LOCK_STRIPES].
+     */
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * Number of codes assigned. Guarded by this.
+     */
+    private int size;
+
+    /**
+     * Total capacity of the tracks in records.
+     */
+    private final LongAdder slots = new LongAdder();
+
+    /**
+     * Receives the waits for contended track locks.
+     */
+    private final GeomemMetrics metrics;
+
+    IdIndex() {
+        this(GeomemMetrics.NONE);
+    }
+
+    IdIndex(GeomemMetrics metrics) {
+        this.metrics = metrics;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Returns the code of the id, assigning the next code if the id has none.
+     *
+     * @param id
+     *            identifier
+     * @return code
+     */
+    int encode(R id) {
+        Integer code = codes.get(id);
+        if (code != null)
+            return code;
+        synchronized (this) {
+            code = codes.get(id);
+            if (code != null)
+                return code;
+            int c = size++;
+            int chunk = c >>> CHUNK_BITS;
+            if (chunk == ids.length) {
+                ids = Arrays.copyOf(ids, chunk * 2);
+                tracks = Arrays.copyOf(tracks, chunk * 2);
+            }
+            if (ids[chunk] == null) {
+                ids[chunk] = new Object[CHUNK_SIZE];
+                tracks[chunk] = new Track<?, ?>[CHUNK_SIZE];
+            }
+            ids[chunk][c & (CHUNK_SIZE - 1)] = id;
+            tracks[chunk][c & (CHUNK_SIZE - 1)] = new Track<T, R>();
+            codes.put(id, c);
+            return c;
+        }
+    }
+
+    /**
+     * Returns the code of the id or -1 if the id has none.
+     *
+     * @param id
+     *            identifier
+     * @return code or -1
+     */
+    int code(R id) {
+        Integer code = codes.get(id);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Returns the id with the given code.
+     *
+     * @param code
+     *            code returned by {@link #encode(Object)}
+     * @return id
+     */
+    @SuppressWarnings("unchecked")
+    R decode(int code) {
+        return (R) ids[code >>> CHUNK_BITS][code & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * Returns the number of ids.
+     *
+     * @return number of ids
+     */
+    int size() {
+        return codes.size();
+    }
+
+    /**
+     * Returns the total capacity of the tracks in records.
+     *
+     * @return number of slots
+     */
+    long slots() {
+        return slots.sum();
+    }
+
+    /**
+     * Adds a record to the track of its id.
+     *
+     * @param id
+     *            identifier
+     * @param key
+     *            key of the record
+     * @param info
+     *            record
+     */
+    void add(R id, Key key, Info<T, R> info) {
+        int code = encode(id);
+        ReentrantLock lock = acquire(code);
+        try {
+            track(code).add(key, info, slots);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the records of the id with the given record.
+     *
+     * @param id
+     *            identifier
+     * @param key
+     *            key of the record
+     * @param info
+     *            record
+     * @return key of the latest record replaced, null if the id had none
+     */
+    Key replace(R id, Key key, Info<T, R> info) {
+        int code = encode(id);
+        ReentrantLock lock = acquire(code);
+        try {
+            return track(code).replace(key, info, slots);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a record from the track of its id.
+     *
+     * @param id
+     *            identifier
+     * @param key
+     *            key of the record
+     * @return true if the record was present
+     */
+    boolean remove(R id, Key key) {
+        int code = code(id);
+        if (code == -1)
+            return false;
+        ReentrantLock lock = acquire(code);
+        try {
+            return track(code).remove(key, slots);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the records of the id where start &lt;= time &lt; finish in key
+     * order.
+     *
+     * @param id
+     *            identifier
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return records in time order
+     */
+    List<Info<T, R>> find(R id, long start, long finish) {
+        int code = code(id);
+        if (code == -1)
+            return Collections.emptyList();
+        ReentrantLock lock = acquire(code);
+        try {
+            return track(code).find(start, finish);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Thins the records of every id where start &lt;= time &lt; finish to
+     * the earliest record in each interval, never removing the latest record
+     * of an id.
+     *
+     * @param start
+     *            start time inclusive, a multiple of interval
+     * @param finish
+     *            finish time exclusive
+     * @param interval
+     *            interval in ms
+     * @param latest
+     *            latest record by id
+     * @param removed
+     *            receives the removed records with their keys
+     */
+    void compact(long start, long finish, long interval, Map<R, Info<T, R>> latest,
+            List<Entry<Key, Info<T, R>>> removed) {
+        int n;
+        synchronized (this) {
+            n = size;
+        }
+        for (int code = 0; code < n; code++) {
+            ReentrantLock lock = acquire(code);
+            try {
+                // read under the lock that serializes updates of the latest
+                Info<T, R> keep = latest.get(decode(code));
+                track(code).compact(start, finish, interval, keep, removed, slots);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the lock guarding the track of the code.
+     *
+     * @param code
+     *            code returned by {@link #encode(Object)}
+     * @return lock
+     */
+    ReentrantLock lock(int code) {
+        return locks[code & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Locks the track of the id, assigning a code to the id if it has none,
+     * and returns the lock for the caller to unlock. The owner of the index
+     * holds it to make updates of its own per-id state atomic with the
+     * changes to the track.
+     *
+     * @param id
+     *            identifier
+     * @return held lock
+     */
+    ReentrantLock lockId(R id) {
+        return acquire(encode(id));
+    }
+
+    /**
+     * Locks the track of the code, reporting the wait if another thread holds
+     * its lock.
+     */
+    private ReentrantLock acquire(int code) {
+        ReentrantLock lock = lock(code);
+        if (!lock.tryLock()) {
+            long startNanos = System.nanoTime();
+            lock.lock();
+            metrics.lockContended(System.nanoTime() - startNanos);
+        }
+        return lock;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Track<T, R> track(int code) {
+        return (Track<T, R>) tracks[code >>> CHUNK_BITS][code & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * The records of one id in key order held in parallel arrays that grow
+     * geometrically. The time and sequence of record i are at 2i and 2i + 1
+     * of keys. Records usually arrive in time order so adding is an append; a
+     * late record is inserted in place. The arrays are allocated on the first
+     * record and released when the track is emptied. Callers must hold the
+     * lock of the track's code. Changes in capacity are added to slots.
+     */
+    static final class Track<T, R> {
+
+        private static final int INITIAL_CAPACITY = 2;
+
+        private long[] keys;
+        private Object[] infos;
+        private int size;
+
+        void add(Key key, Info<T, R> info, LongAdder slots) {
+            if (size == capacity())
+                resize(Math.max(INITIAL_CAPACITY, size * 2), slots);
+            int i = size;
+            if (size > 0 && compare(size - 1, key) > 0) {
+                i = lowerBound(key);
+                System.arraycopy(keys, 2 * i, keys, 2 * i + 2, 2 * (size - i));
+                System.arraycopy(infos, i, infos, i + 1, size - i);
+            }
+            keys[2 * i] = key.time();
+            keys[2 * i + 1] = key.sequence();
+            infos[i] = info;
+            size++;
+        }
+
+        Key replace(Key key, Info<T, R> info, LongAdder slots) {
+            if (size == 0) {
+                add(key, info, slots);
+                return null;
+            }
+            Key previous = key(size - 1);
+            Arrays.fill(infos, 0, size, null);
+            size = 0;
+            add(key, info, slots);
+            return previous;
+        }
+
+        boolean remove(Key key, LongAdder slots) {
+            int i = lowerBound(key);
+            if (i == size || compare(i, key) != 0)
+                return false;
+            System.arraycopy(keys, 2 * i + 2, keys, 2 * i, 2 * (size - i - 1));
+            System.arraycopy(infos, i + 1, infos, i, size - i - 1);
+            infos[--size] = null;
+            shrinkIfSparse(slots);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Info<T, R>> find(long start, long finish) {
+            int from = lowerBound(Key.first(start));
+            int to = lowerBound(Key.first(finish));
+            List<Info<T, R>> list = Lists.newArrayListWithCapacity(Math.max(0, to - from));
+            for (int i = from; i < to; i++)
+                list.add((Info<T, R>) infos[i]);
+            return list;
+        }
+
+        int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        void compact(long start, long finish, long interval, Info<T, R> keep,
+                List<Entry<Key, Info<T, R>>> removed, LongAdder slots) {
+            int from = lowerBound(Key.first(start));
+            int to = lowerBound(Key.first(finish));
+            int j = from;
+            long bucket = 0;
+            for (int i = from; i < to; i++) {
+                long b = Math.floorDiv(keys[2 * i], interval);
+                if (i > from && b == bucket && infos[i] != keep)
+                    removed.add(new SimpleImmutableEntry<Key, Info<T, R>>(key(i),
+                            (Info<T, R>) infos[i]));
+                else {
+                    bucket = b;
+                    keys[2 * j] = keys[2 * i];
+                    keys[2 * j + 1] = keys[2 * i + 1];
+                    infos[j] = infos[i];
+                    j++;
+                }
+            }
+            if (j < to) {
+                System.arraycopy(keys, 2 * to, keys, 2 * j, 2 * (size - to));
+                System.arraycopy(infos, to, infos, j, size - to);
+                int newSize = size - (to - j);
+                Arrays.fill(infos, newSize, size, null);
+                size = newSize;
+                shrinkIfSparse(slots);
+            }
+        }
+
+        private int capacity() {
+            return infos == null ? 0 : infos.length;
+        }
+
+        private void shrinkIfSparse(LongAdder slots) {
+            if (size == 0)
+                resize(0, slots);
+            else if (size < capacity() / 4)
+                resize(Math.max(INITIAL_CAPACITY, size * 2), slots);
+        }
+
+        private void resize(int capacity, LongAdder slots) {
+            slots.add(capacity - capacity());
+            if (capacity == 0) {
+                keys = null;
+                infos = null;
+            } else if (infos == null) {
+                keys = new long[2 * capacity];
+                infos = new Object[capacity];
+            } else {
+                keys = Arrays.copyOf(keys, 2 * capacity);
+                infos = Arrays.copyOf(infos, capacity);
+            }
+        }
+
+        private Key key(int i) {
+            return new Key(keys[2 * i], keys[2 * i + 1]);
+        }
+
+        /**
+         * Returns the index of the first record with key &gt;= key.
+         */
+        private int lowerBound(Key key) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(mid, key) < 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        private int compare(int i, Key key) {
+            long time = keys[2 * i];
+            if (time != key.time())
+                return time < key.time() ? -1 : 1;
+            else
+                return Long.compare(keys[2 * i + 1], key.sequence());
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Sort key for records in a geohash cell. Records are ordered by time and
+ * then by a sequence number assigned on insert so that records with the same
+ * time do not replace each other.
+ */
+final class Key implements Comparable<Key> {
+
+    private final long time;
+    private final long sequence;
+
+    Key(long time, long sequence) {
+        this.time = time;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns a key that sorts before all keys with the given time and after
+     * all keys with an earlier time.
+     *
+     * @param time
+     *            time in epoch ms
+     * @return lower bound key for time
+     */
+    static Key first(long time) {
+        return new Key(time, Long.MIN_VALUE);
+    }
+
+    long time() {
+        return time;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    @Override
+    public int compareTo(Key o) {
+        if (time < o.time)
+            return -1;
+        else if (time > o.time)
+            return 1;
+        else
+            return Long.compare(sequence, o.sequence);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        else if (!(o instanceof Key))
+            return false;
+        else {
+            Key k = (Key) o;
+            return time == k.time && sequence == k.sequence;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(time) + Long.hashCode(sequence);
+    }
+
+    @Override
+    public String toString() {
+        return "Key [time=" + time + ", sequence=" + sequence + "]";
+    }
+
+}
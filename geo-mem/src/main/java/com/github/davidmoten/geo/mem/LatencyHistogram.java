@@ -0,0 +1,104 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of durations in nanoseconds with power of two
+ * buckets. Recording is an increment of two striped counters so threads
+ * recording at the same time do not contend. Quantiles are accurate to within
+ * a factor of two.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 65;
+
+    /**
+     * Bucket i counts durations d with 2^(i-1) &lt;= d &lt; 2^i (bucket 0
+     * counts zero durations).
+     */
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+        long d = Math.max(0, nanos);
+        buckets[64 - Long.numberOfLeadingZeros(d)].increment();
+        totalNanos.add(d);
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     * 
+     * @return count
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets)
+            count += bucket.sum();
+        return count;
+    }
+
+    /**
+     * Returns the sum of the durations recorded in nanoseconds.
+     * 
+     * @return total nanoseconds
+     */
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * Returns the mean duration in nanoseconds, 0 if none recorded.
+     * 
+     * @return mean nanoseconds
+     */
+    public double meanNanos() {
+        long count = count();
+        return count == 0 ? 0 : (double) totalNanos() / count;
+    }
+
+    /**
+     * Returns the counts of the buckets, where bucket i counts durations d
+     * with 2^(i-1) &lt;= d &lt; 2^i nanoseconds and bucket 0 counts zero
+     * durations.
+     * 
+     * @return bucket counts
+     */
+    public long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+        return counts;
+    }
+
+    /**
+     * Returns an upper bound of the duration at the given quantile, for
+     * example 0.99 for the 99th percentile, being the exclusive upper bound
+     * of its bucket. Returns 0 if none recorded.
+     * 
+     * @param quantile
+     *            between 0 and 1 inclusive
+     * @return upper bound in nanoseconds
+     */
+    public long valueAtQuantile(double quantile) {
+        long[] counts = counts();
+        long count = 0;
+        for (long c : counts)
+            count += c;
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank)
+                return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : 1L << i;
+        }
+        return Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Thrown by an add to a {@link Geomem} whose estimated memory usage exceeds
+ * its memory budget when the policy is {@link OverBudgetPolicy#REJECT}.
+ */
+public class MemoryBudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MemoryBudgetExceededException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Estimated heap used by a {@link Geomem} by structure. Estimates are made
+ * from counts of the objects in each structure and their sizes on a 64 bit
+ * JVM with compressed references. Payload sizes are included only when a
+ * payload sizer has been set with
+ * {@link Geomem.Builder#payloadSizer(com.google.common.base.Function)}.
+ */
+public final class MemoryUsage {
+
+    /**
+     * A {@link java.util.concurrent.ConcurrentSkipListMap} node plus on
+     * average a third of an index node.
+     */
+    static final long SKIP_LIST_ENTRY_BYTES = 32;
+
+    /**
+     * A {@link Key}.
+     */
+    static final long KEY_BYTES = 32;
+
+    /**
+     * An {@link Info} and its optional id.
+     */
+    static final long INFO_BYTES = 64;
+
+    /**
+     * A geohash cell: its map entry and boxed key, an empty skip list and its
+     * {@link CellStats}.
+     */
+    static final long CELL_BYTES = 280;
+
+    /**
+     * A {@link java.util.concurrent.ConcurrentHashMap} entry and its boxed
+     * key.
+     */
+    static final long MAP_ENTRY_BYTES = 48;
+
+    /**
+     * A latest position cell: its map entry and boxed key and an empty
+     * concurrent map.
+     */
+    static final long LATEST_CELL_BYTES = 190;
+
+    /**
+     * An id in the id index: its dictionary entry and boxed code, its track
+     * and the headers of the track's arrays.
+     */
+    static final long ID_BYTES = 112;
+
+    /**
+     * A slot in a track: a time, a sequence and a reference.
+     */
+    static final long TRACK_SLOT_BYTES = 20;
+
+    private final long records;
+    private final long spatialIndexBytes;
+    private final long idIndexBytes;
+    private final long latestIndexBytes;
+    private final long recordBytes;
+
+    MemoryUsage(long records, long spatialIndexBytes, long idIndexBytes, long latestIndexBytes,
+            long recordBytes) {
+        this.records = records;
+        this.spatialIndexBytes = spatialIndexBytes;
+        this.idIndexBytes = idIndexBytes;
+        this.latestIndexBytes = latestIndexBytes;
+        this.recordBytes = recordBytes;
+    }
+
+    /**
+     * Returns the number of records.
+     * 
+     * @return number of records
+     */
+    public long records() {
+        return records;
+    }
+
+    /**
+     * Returns the bytes used by the geohash cells and their entries.
+     * 
+     * @return bytes
+     */
+    public long spatialIndexBytes() {
+        return spatialIndexBytes;
+    }
+
+    /**
+     * Returns the bytes used by the per id tracks.
+     * 
+     * @return bytes
+     */
+    public long idIndexBytes() {
+        return idIndexBytes;
+    }
+
+    /**
+     * Returns the bytes used by the latest position index.
+     * 
+     * @return bytes
+     */
+    public long latestIndexBytes() {
+        return latestIndexBytes;
+    }
+
+    /**
+     * Returns the bytes used by the records and their payloads.
+     * 
+     * @return bytes
+     */
+    public long recordBytes() {
+        return recordBytes;
+    }
+
+    /**
+     * Returns the total bytes.
+     * 
+     * @return bytes
+     */
+    public long totalBytes() {
+        return spatialIndexBytes + idIndexBytes + latestIndexBytes + recordBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryUsage [records=" + records + ", spatialIndexBytes=" + spatialIndexBytes
+                + ", idIndexBytes=" + idIndexBytes + ", latestIndexBytes=" + latestIndexBytes
+                + ", recordBytes=" + recordBytes + ", totalBytes=" + totalBytes() + "]";
+    }
+
+}
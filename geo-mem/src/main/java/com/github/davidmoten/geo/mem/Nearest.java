@@ -0,0 +1,117 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Accumulates the k records nearest to a point, counting at most one record
+ * (the nearest) for each id. Not thread safe.
+ *
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+final class Nearest<T, R> {
+
+    private final double lat;
+    private final double lon;
+    private final int k;
+
+    /**
+     * Max heap so the current kth nearest is at the head.
+     */
+    private final PriorityQueue<Candidate<T, R>> heap;
+    private final Map<R, Candidate<T, R>> byId = Maps.newHashMap();
+
+    Nearest(double lat, double lon, int k) {
+        this.lat = lat;
+        this.lon = lon;
+        this.k = k;
+        this.heap = new PriorityQueue<Candidate<T, R>>(k, new Comparator<Candidate<T, R>>() {
+            @Override
+            public int compare(Candidate<T, R> a, Candidate<T, R> b) {
+                return Double.compare(b.distance, a.distance);
+            }
+        });
+    }
+
+    boolean isFull() {
+        return heap.size() == k;
+    }
+
+    /**
+     * Returns the distance of the kth nearest record so far or
+     * {@link Double#MAX_VALUE} if fewer than k records have been accepted.
+     *
+     * @return distance in metres
+     */
+    double kthDistance() {
+        if (isFull())
+            return heap.peek().distance;
+        else
+            return Double.MAX_VALUE;
+    }
+
+    void offer(Info<T, R> info) {
+        double limit = kthDistance();
+        // cheap rejection before the trigonometry
+        if (Distance.latitudeDistance(lat, info.lat()) >= limit)
+            return;
+        double distance = Distance.haversine(lat, lon, info.lat(), info.lon());
+        if (info.id().isPresent()) {
+            Candidate<T, R> existing = byId.get(info.id().get());
+            if (existing != null) {
+                if (distance < existing.distance) {
+                    heap.remove(existing);
+                    add(new Candidate<T, R>(info, distance));
+                }
+                return;
+            }
+        }
+        if (distance < limit) {
+            if (isFull()) {
+                Candidate<T, R> removed = heap.poll();
+                if (removed.info.id().isPresent())
+                    byId.remove(removed.info.id().get());
+            }
+            add(new Candidate<T, R>(info, distance));
+        }
+    }
+
+    private void add(Candidate<T, R> c) {
+        heap.add(c);
+        if (c.info.id().isPresent())
+            byId.put(c.info.id().get(), c);
+    }
+
+    /**
+     * Returns the accepted records in order of increasing distance.
+     *
+     * @return records nearest first
+     */
+    List<Info<T, R>> toList() {
+        List<Candidate<T, R>> candidates = Lists.newArrayList(heap);
+        Collections.sort(candidates, Collections.reverseOrder(heap.comparator()));
+        List<Info<T, R>> list = Lists.newArrayListWithCapacity(candidates.size());
+        for (Candidate<T, R> c : candidates)
+            list.add(c.info);
+        return list;
+    }
+
+    private static final class Candidate<T, R> {
+        final Info<T, R> info;
+        final double distance;
+
+        Candidate(Info<T, R> info, double distance) {
+            this.info = info;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * The order in which {@link Geomem} query results are returned.
+ */
+public enum Order {
+
+    /**
+     * No particular order. Results are returned cell by cell which is the
+     * cheapest way of returning them.
+     */
+    UNORDERED,
+
+    /**
+     * Increasing time. Records with the same time are returned in insertion
+     * order.
+     */
+    ASCENDING,
+
+    /**
+     * Decreasing time. Records with the same time are returned in reverse
+     * insertion order.
+     */
+    DESCENDING;
+
+}
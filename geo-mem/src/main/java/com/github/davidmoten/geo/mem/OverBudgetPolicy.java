@@ -0,0 +1,20 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * What a {@link Geomem} does when its estimated memory usage exceeds its
+ * memory budget.
+ */
+public enum OverBudgetPolicy {
+
+    /**
+     * Removes the oldest records (by time) until within budget.
+     */
+    EVICT_OLDEST,
+
+    /**
+     * Rejects adds with a {@link MemoryBudgetExceededException} until memory
+     * is freed (for example by {@link Geomem#compact}).
+     */
+    REJECT;
+
+}
@@ -0,0 +1,60 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.List;
+
+import com.google.common.base.Optional;
+
+/**
+ * A page of the results of a {@link Geomem} query and the token to request
+ * the next page with.
+ * 
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+public final class Page<T, R> {
+
+    private final List<Info<T, R>> records;
+    private final Optional<String> nextToken;
+
+    Page(List<Info<T, R>> records, Optional<String> nextToken) {
+        this.records = records;
+        this.nextToken = nextToken;
+    }
+
+    /**
+     * Returns the records of the page.
+     * 
+     * @return records
+     */
+    public List<Info<T, R>> records() {
+        return records;
+    }
+
+    /**
+     * Returns the token that resumes the query after the last record of this
+     * page, absent if this is the last page. A full page may be followed by
+     * an empty last page.
+     * 
+     * @return token for the next page
+     */
+    public Optional<String> nextToken() {
+        return nextToken;
+    }
+
+    /**
+     * Returns true if there may be another page.
+     * 
+     * @return true if there is a next token
+     */
+    public boolean hasNext() {
+        return nextToken.isPresent();
+    }
+
+    @Override
+    public String toString() {
+        return "Page [records=" + records.size() + ", nextToken=" + nextToken + "]";
+    }
+
+}
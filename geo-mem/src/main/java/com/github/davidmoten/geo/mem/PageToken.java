@@ -0,0 +1,66 @@
+package com.github.davidmoten.geo.mem;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * The position after the last record of a page of {@link Geomem} results:
+ * the index of the covering geohash cell that record came from and its key
+ * (time and sequence). Encoded as a URL safe string so it can be handed to
+ * clients as a continuation token.
+ */
+final class PageToken {
+
+    private static final byte VERSION = 1;
+    private static final int BYTES = 1 + 4 + 8 + 8;
+
+    private final int cell;
+    private final Key key;
+
+    PageToken(int cell, Key key) {
+        this.cell = cell;
+        this.key = key;
+    }
+
+    int cell() {
+        return cell;
+    }
+
+    Key key() {
+        return key;
+    }
+
+    String encode() {
+        ByteBuffer bb = ByteBuffer.allocate(BYTES);
+        bb.put(VERSION);
+        bb.putInt(cell);
+        bb.putLong(key.time());
+        bb.putLong(key.sequence());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bb.array());
+    }
+
+    /**
+     * Returns the token encoded by {@link #encode()}.
+     * 
+     * @param token
+     *            encoded token
+     * @return token
+     * @throws IllegalArgumentException
+     *             if token was not returned by {@link #encode()}
+     */
+    static PageToken decode(String token) {
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(Base64.getUrlDecoder().decode(token));
+            if (bb.remaining() != BYTES || bb.get() != VERSION)
+                throw new IllegalArgumentException("invalid page token: " + token);
+            int cell = bb.getInt();
+            if (cell < 0)
+                throw new IllegalArgumentException("invalid page token: " + token);
+            return new PageToken(cell, new Key(bb.getLong(), bb.getLong()));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("invalid page token: " + token, e);
+        }
+    }
+
+}
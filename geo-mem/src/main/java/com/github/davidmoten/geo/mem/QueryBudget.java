@@ -0,0 +1,114 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Limits on the resources used by a {@link Geomem} query. A query that reaches
+ * a limit stops and returns the results found so far flagged as truncated
+ * (see {@link QueryResult#isTruncated()}). Immutable: each method setting a
+ * limit returns a new budget.
+ */
+public final class QueryBudget {
+
+    private static final QueryBudget UNLIMITED = new QueryBudget(Long.MAX_VALUE,
+            Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    private final long maxScanned;
+    private final int maxCells;
+    private final long timeoutNanos;
+
+    private QueryBudget(long maxScanned, int maxCells, long timeoutNanos) {
+        this.maxScanned = maxScanned;
+        this.maxCells = maxCells;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Returns a budget with no limits.
+     * 
+     * @return budget
+     */
+    public static QueryBudget unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Returns this budget with a maximum number of records scanned, being
+     * the records in the time range of the covering geohash cells whether or
+     * not they are in the bounding box.
+     * 
+     * @param maxScanned
+     *            maximum records scanned
+     * @return budget
+     */
+    public QueryBudget maxScanned(long maxScanned) {
+        Preconditions.checkArgument(maxScanned >= 0, "maxScanned cannot be negative");
+        return new QueryBudget(maxScanned, maxCells, timeoutNanos);
+    }
+
+    /**
+     * Returns this budget with a maximum number of geohash cells scanned. The
+     * bounding box is covered with coarser (and so fewer) cells if needed;
+     * the query is only truncated if more than maxCells cells of length 1
+     * are needed.
+     * 
+     * @param maxCells
+     *            maximum cells scanned
+     * @return budget
+     */
+    public QueryBudget maxCells(int maxCells) {
+        Preconditions.checkArgument(maxCells > 0, "maxCells must be positive");
+        return new QueryBudget(maxScanned, maxCells, timeoutNanos);
+    }
+
+    /**
+     * Returns this budget with a maximum duration measured from the start of
+     * the query.
+     * 
+     * @param duration
+     *            maximum duration
+     * @param unit
+     *            unit of duration
+     * @return budget
+     */
+    public QueryBudget timeout(long duration, TimeUnit unit) {
+        Preconditions.checkArgument(duration >= 0, "duration cannot be negative");
+        return new QueryBudget(maxScanned, maxCells, unit.toNanos(duration));
+    }
+
+    /**
+     * Returns the maximum number of records scanned.
+     * 
+     * @return maximum records scanned, Long.MAX_VALUE if unlimited
+     */
+    public long maxScanned() {
+        return maxScanned;
+    }
+
+    /**
+     * Returns the maximum number of geohash cells scanned.
+     * 
+     * @return maximum cells, Integer.MAX_VALUE if unlimited
+     */
+    public int maxCells() {
+        return maxCells;
+    }
+
+    /**
+     * Returns the maximum duration of the query in nanoseconds.
+     * 
+     * @return timeout in nanoseconds, Long.MAX_VALUE if unlimited
+     */
+    public long timeoutNanos() {
+        return timeoutNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryBudget [maxScanned=" + maxScanned + ", maxCells=" + maxCells
+                + ", timeoutNanos=" + timeoutNanos + "]";
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Measures one query for {@link GeomemMetrics} and JDK Flight Recorder: counts
+ * the records tested by its region filter and the records returned and
+ * reports them with the time taken when its results are exhausted. Does
+ * nothing when the metrics are {@link GeomemMetrics#NONE} and query events are
+ * not being recorded. The filter of an eagerly evaluated query may be called
+ * from several threads (see {@link Geomem#find(double, double, double, double,
+ * long, long, Order, java.util.concurrent.Executor)}).
+ */
+final class QueryMeter {
+
+    private final GeomemMetrics metrics;
+    private final int cells;
+    private final double topLeftLat;
+    private final double topLeftLon;
+    private final double bottomRightLat;
+    private final double bottomRightLon;
+    private final long start;
+    private final long finish;
+    private final boolean enabled;
+    private final LongAdder scanned = new LongAdder();
+
+    // set by counting for an eagerly evaluated query
+    private long startNanos;
+    private Object event;
+
+    QueryMeter(GeomemMetrics metrics, int cells, double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish) {
+        this.metrics = metrics;
+        this.cells = cells;
+        this.topLeftLat = topLeftLat;
+        this.topLeftLon = topLeftLon;
+        this.bottomRightLat = bottomRightLat;
+        this.bottomRightLon = bottomRightLon;
+        this.start = start;
+        this.finish = finish;
+        this.enabled = metrics != GeomemMetrics.NONE || FlightRecorderEvents.queryEnabled();
+    }
+
+    /**
+     * Starts measuring an eagerly evaluated query (reported by
+     * {@link #record(long)}) and returns the filter counting the records it
+     * tests.
+     */
+    <T> Predicate<T> counting(final Predicate<T> filter) {
+        if (!enabled)
+            return filter;
+        startNanos = System.nanoTime();
+        event = FlightRecorderEvents.beginQuery();
+        return new Predicate<T>() {
+            @Override
+            public boolean apply(T t) {
+                scanned.increment();
+                return filter.apply(t);
+            }
+        };
+    }
+
+    /**
+     * Returns the results of a lazily evaluated query that are reported (once
+     * per iteration) when exhausted. Each iteration gets the results for its
+     * own copy of the filter that counts the records tested in that iteration
+     * only and is timed from its start.
+     */
+    <T> Iterable<T> record(final Predicate<T> filter,
+            final Function<Predicate<T>, Iterable<T>> results) {
+        if (!enabled)
+            return results.apply(filter);
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                final long iterationStartNanos = System.nanoTime();
+                final Object iterationEvent = FlightRecorderEvents.beginQuery();
+                final long[] iterationScanned = new long[1];
+                final Iterator<T> it = results.apply(new Predicate<T>() {
+                    @Override
+                    public boolean apply(T t) {
+                        iterationScanned[0]++;
+                        return filter.apply(t);
+                    }
+                }).iterator();
+                return new AbstractIterator<T>() {
+                    private long returned;
+
+                    @Override
+                    protected T computeNext() {
+                        if (it.hasNext()) {
+                            returned++;
+                            return it.next();
+                        }
+                        report(iterationEvent, iterationStartNanos, iterationScanned[0],
+                                returned);
+                        return endOfData();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Reports an eagerly evaluated query that has returned.
+     */
+    void record(long returned) {
+        if (enabled)
+            report(event, startNanos, scanned.sum(), returned);
+    }
+
+    private void report(Object event, long startNanos, long scanned, long returned) {
+        metrics.queried(cells, scanned, returned, System.nanoTime() - startNanos);
+        FlightRecorderEvents.commitQuery(event, this, scanned, returned);
+    }
+
+    int cells() {
+        return cells;
+    }
+
+    double topLeftLat() {
+        return topLeftLat;
+    }
+
+    double topLeftLon() {
+        return topLeftLon;
+    }
+
+    double bottomRightLat() {
+        return bottomRightLat;
+    }
+
+    double bottomRightLon() {
+        return bottomRightLon;
+    }
+
+    long start() {
+        return start;
+    }
+
+    long finish() {
+        return finish;
+    }
+
+}
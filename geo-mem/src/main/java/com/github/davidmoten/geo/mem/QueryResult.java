@@ -0,0 +1,71 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.List;
+
+/**
+ * The results of a {@link Geomem} query run with a {@link QueryBudget}.
+ * 
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+public final class QueryResult<T, R> {
+
+    private final List<Info<T, R>> records;
+    private final boolean truncated;
+    private final int cells;
+    private final long scanned;
+
+    QueryResult(List<Info<T, R>> records, boolean truncated, int cells, long scanned) {
+        this.records = records;
+        this.truncated = truncated;
+        this.cells = cells;
+        this.scanned = scanned;
+    }
+
+    /**
+     * Returns the records found.
+     * 
+     * @return records
+     */
+    public List<Info<T, R>> records() {
+        return records;
+    }
+
+    /**
+     * Returns true if the query stopped at a limit of its budget before
+     * finding all matching records, in which case the records are a subset
+     * of the matching records (for ordered queries the earliest or latest).
+     * 
+     * @return true if truncated
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Returns the number of geohash cells scanned.
+     * 
+     * @return cells
+     */
+    public int cells() {
+        return cells;
+    }
+
+    /**
+     * Returns the number of records scanned.
+     * 
+     * @return records scanned
+     */
+    public long scanned() {
+        return scanned;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryResult [records=" + records.size() + ", truncated=" + truncated
+                + ", cells=" + cells + ", scanned=" + scanned + "]";
+    }
+
+}
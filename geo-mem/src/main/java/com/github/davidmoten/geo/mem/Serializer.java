@@ -0,0 +1,29 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Converts objects to and from bytes for persisting {@link Geomem} records.
+ *
+ * @param <T>
+ *            type of object
+ */
+public interface Serializer<T> {
+
+    /**
+     * Returns the bytes representing t.
+     *
+     * @param t
+     *            object to serialize
+     * @return bytes
+     */
+    byte[] serialize(T t);
+
+    /**
+     * Returns the object represented by the bytes.
+     *
+     * @param bytes
+     *            bytes produced by {@link #serialize(Object)}
+     * @return object
+     */
+    T deserialize(byte[] bytes);
+
+}
@@ -0,0 +1,427 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.davidmoten.geo.Base32;
+import com.github.davidmoten.geo.Coverage;
+import com.github.davidmoten.geo.GeoHash;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Partitions records by the first one or two characters of their geohash
+ * into independent {@link Geomem} shards so that concurrent adds to different
+ * regions do not contend on the same maps. A query is sent only to the shards
+ * that its covering geohashes touch, so a query over a small region uses a
+ * single shard.
+ * 
+ * <p>
+ * Only adds and the find, latest and track queries are supported; for the
+ * other operations of {@link Geomem} (compaction, snapshots, subscriptions,
+ * statistics) use the shards' own store. Shards are created from a
+ * {@link Geomem.Builder} so metrics, payload sizing and a memory budget
+ * (which then applies to each shard) pass through, but a write ahead log and
+ * upsert mode are rejected.
+ * 
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+public final class ShardedGeomem<T, R> {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final int prefixLength;
+    private final List<Geomem<T, R>> shards;
+
+    /**
+     * Latest record of each id across all shards. Updated only while holding
+     * the lock of the id in locks. Only the shard of this record reports a
+     * latest position for the id.
+     */
+    private final ConcurrentMap<R, Info<T, R>> latestById = Maps.newConcurrentMap();
+
+    /**
+     * Indexes of the shards holding records of each id, so a track query
+     * reads only those shards.
+     */
+    private final ConcurrentMap<R, Set<Integer>> shardsById = Maps.newConcurrentMap();
+
+    /**
+     * Serialize the updates of the latest record of an id, the lock of an id
+     * being locks[hash(id) % LOCK_STRIPES].
+     */
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * Constructor.
+     * 
+     * @param prefixLength
+     *            number of geohash characters (1 or 2) that select the shard,
+     *            giving 32 or 1024 shards
+     */
+    public ShardedGeomem(int prefixLength) {
+        this(prefixLength, Geomem.<T, R> builder());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param prefixLength
+     *            number of geohash characters (1 or 2) that select the shard,
+     *            giving 32 or 1024 shards
+     * @param builder
+     *            configures each shard, without a write ahead log or upsert
+     *            mode
+     * @throws IllegalArgumentException
+     *             if the builder has a write ahead log or upsert mode
+     */
+    public ShardedGeomem(int prefixLength, Geomem.Builder<T, R> builder) {
+        Preconditions.checkArgument(prefixLength == 1 || prefixLength == 2,
+                "prefixLength must be 1 or 2");
+        this.prefixLength = prefixLength;
+        int n = 1 << (5 * prefixLength);
+        this.shards = Lists.newArrayListWithCapacity(n);
+        for (int i = 0; i < n; i++)
+            shards.add(builder.buildShard());
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Returns the number of shards.
+     * 
+     * @return number of shards
+     */
+    public int shardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Adds a record with the given position, time and id.
+     * 
+     * @param lat
+     *            latitude
+     * @param lon
+     *            longitude
+     * @param time
+     *            time in epoch ms
+     * @param t
+     *            object
+     * @param id
+     *            identifier
+     */
+    public void add(double lat, double lon, long time, T t, R id) {
+        add(new Info<T, R>(lat, lon, time, t, Optional.of(id)));
+    }
+
+    /**
+     * Adds a record with the given position, time and optional id.
+     * 
+     * @param lat
+     *            latitude
+     * @param lon
+     *            longitude
+     * @param time
+     *            time in epoch ms
+     * @param t
+     *            object
+     * @param id
+     *            identifier
+     */
+    public void add(double lat, double lon, long time, T t, Optional<R> id) {
+        add(new Info<T, R>(lat, lon, time, t, id));
+    }
+
+    /**
+     * Adds a record to the shard for its position.
+     * 
+     * @param info
+     *            record to add
+     */
+    public void add(Info<T, R> info) {
+        int shard = shard(info);
+        addShardOfId(info, shard);
+        shards.get(shard).add(info);
+        updateLatest(info, shard);
+    }
+
+    /**
+     * Adds all the records, grouped into a batch per shard (see
+     * {@link Geomem#addAll(Iterable)}).
+     * 
+     * @param infos
+     *            records to add
+     */
+    public void addAll(Iterable<Info<T, R>> infos) {
+        List<List<Info<T, R>>> batches = Lists.newArrayListWithCapacity(shards.size());
+        for (int i = 0; i < shards.size(); i++)
+            batches.add(null);
+        for (Info<T, R> info : infos) {
+            int shard = shard(info);
+            List<Info<T, R>> batch = batches.get(shard);
+            if (batch == null) {
+                batch = Lists.newArrayList();
+                batches.set(shard, batch);
+            }
+            batch.add(info);
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            List<Info<T, R>> batch = batches.get(i);
+            if (batch != null) {
+                for (Info<T, R> info : batch)
+                    addShardOfId(info, i);
+                shards.get(i).addAll(batch);
+                for (Info<T, R> info : batch)
+                    updateLatest(info, i);
+            }
+        }
+    }
+
+    /**
+     * Returns the records within the bounding box given and where start
+     * &lt;=time &lt; finish (see
+     * {@link Geomem#find(double, double, double, double, long, long)}).
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records
+     */
+    public Iterable<Info<T, R>> find(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish) {
+        List<Iterable<Info<T, R>>> list = Lists.newArrayList();
+        for (int shard : shards(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon))
+            list.add(shards.get(shard).find(topLeftLat, topLeftLon, bottomRightLat,
+                    bottomRightLon, start, finish));
+        return Iterables.concat(list);
+    }
+
+    /**
+     * Returns at most limit records within the bounding box given and where
+     * start &lt;=time &lt; finish in the given order (see
+     * {@link Geomem#find(double, double, double, double, long, long, Order, int)}
+     * ). Ordered results of the shards are merged by time.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @param order
+     *            order of the results
+     * @param limit
+     *            maximum number of results
+     * @return info records
+     */
+    public Iterable<Info<T, R>> find(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish, Order order,
+            int limit) {
+        List<Iterable<Info<T, R>>> list = Lists.newArrayList();
+        for (int shard : shards(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon))
+            list.add(shards.get(shard).find(topLeftLat, topLeftLon, bottomRightLat,
+                    bottomRightLon, start, finish, order, limit));
+        Iterable<Info<T, R>> it;
+        if (order == Order.UNORDERED)
+            it = Iterables.concat(list);
+        else
+            it = Iterables.mergeSorted(list, byTime(order == Order.DESCENDING));
+        return Iterables.limit(it, limit);
+    }
+
+    /**
+     * Returns the latest record of each id whose latest position is within
+     * the bounding box given (see
+     * {@link Geomem#findLatest(double, double, double, double)}).
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @return info records
+     */
+    public Iterable<Info<T, R>> findLatest(double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon) {
+        List<Iterable<Info<T, R>>> list = Lists.newArrayList();
+        for (int shard : shards(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon))
+            list.add(shards.get(shard).findLatest(topLeftLat, topLeftLon, bottomRightLat,
+                    bottomRightLon));
+        return Iterables.filter(Iterables.concat(list), new Predicate<Info<T, R>>() {
+            @Override
+            public boolean apply(Info<T, R> info) {
+                // exclude a position in a shard the id is moving out of
+                return latestById.get(info.id().get()) == info;
+            }
+        });
+    }
+
+    /**
+     * Returns the latest record (by time) for the given id.
+     * 
+     * @param id
+     *            identifier
+     * @return latest record if any
+     */
+    public Optional<Info<T, R>> findLatest(R id) {
+        return Optional.fromNullable(latestById.get(id));
+    }
+
+    /**
+     * Returns the records with the given id where start &lt;=time &lt; finish
+     * in time order, merged from the shards that hold records of the id.
+     * 
+     * @param id
+     *            identifier
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return info records in time order
+     */
+    public Iterable<Info<T, R>> findTrack(R id, long start, long finish) {
+        Set<Integer> set = shardsById.get(id);
+        if (set == null)
+            return Collections.emptyList();
+        List<Iterable<Info<T, R>>> list = Lists.newArrayList();
+        for (int shard : set)
+            list.add(shards.get(shard).findTrack(id, start, finish));
+        return Iterables.mergeSorted(list, byTime(false));
+    }
+
+    /**
+     * Returns the shard with the given index.
+     * 
+     * @param index
+     *            shard index
+     * @return shard
+     */
+    @VisibleForTesting
+    Geomem<T, R> shardAt(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * Returns the indexes of the shards that hold the records within the
+     * bounding box given.
+     * 
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @return shard indexes in ascending order
+     */
+    Set<Integer> shards(double topLeftLat, double topLeftLon, double bottomRightLat,
+            double bottomRightLon) {
+        Coverage cover = Geomem.cover(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon);
+        Set<Integer> set = Sets.newTreeSet();
+        for (String hash : cover.getHashes()) {
+            if (hash.length() >= prefixLength)
+                set.add((int) Base32.decodeBase32(hash.substring(0, prefixLength)));
+            else {
+                // all the shards with this prefix
+                int shift = 5 * (prefixLength - hash.length());
+                int first = (int) Base32.decodeBase32(hash) << shift;
+                for (int i = 0; i < 1 << shift; i++)
+                    set.add(first + i);
+            }
+        }
+        return set;
+    }
+
+    private int shard(Info<T, R> info) {
+        return (int) (Geomem.hash(info.lat(), info.lon()) >>> (5
+                * (GeoHash.MAX_HASH_LENGTH - prefixLength)));
+    }
+
+    private void addShardOfId(Info<T, R> info, int shard) {
+        if (!info.id().isPresent())
+            return;
+        R id = info.id().get();
+        Set<Integer> set = shardsById.get(id);
+        if (set == null) {
+            Set<Integer> created = Sets.newConcurrentHashSet();
+            set = shardsById.putIfAbsent(id, created);
+            if (set == null)
+                set = created;
+        }
+        set.add(shard);
+    }
+
+    /**
+     * Records info (just added to the given shard) as the latest of its id if
+     * it is, and removes the latest position of the id from any shard other
+     * than the shard of the latest record.
+     * 
+     * @param info
+     *            record just added
+     * @param shard
+     *            index of the shard of info
+     */
+    private void updateLatest(Info<T, R> info, int shard) {
+        if (!info.id().isPresent())
+            return;
+        R id = info.id().get();
+        ReentrantLock lock = locks[id.hashCode() & (LOCK_STRIPES - 1)];
+        lock.lock();
+        try {
+            Info<T, R> previous = latestById.get(id);
+            if (previous == null || previous.time() <= info.time()) {
+                latestById.put(id, info);
+                int previousShard = previous == null ? shard : shard(previous);
+                if (previousShard != shard)
+                    shards.get(previousShard).removeLatest(id, previous);
+            } else if (shard(previous) != shard)
+                // info is the latest in its shard but not overall
+                shards.get(shard).removeLatest(id, info);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <T, R> Comparator<Info<T, R>> byTime(final boolean descending) {
+        return new Comparator<Info<T, R>>() {
+            @Override
+            public int compare(Info<T, R> a, Info<T, R> b) {
+                int c = Long.compare(a.time(), b.time());
+                return descending ? -c : c;
+            }
+        };
+    }
+
+}
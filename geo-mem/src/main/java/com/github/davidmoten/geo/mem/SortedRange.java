@@ -0,0 +1,143 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Read-only view of a contiguous range of a batch of records ordered by key,
+ * used to build a {@link java.util.concurrent.ConcurrentSkipListMap} in linear
+ * time (its {@link SortedMap} constructor does not compare or search, and is
+ * the only way to build one without a search per record). Sub-maps are views
+ * of narrower ranges found by binary search.
+ *
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+final class SortedRange<T, R> extends AbstractMap<Key, Info<T, R>>
+        implements SortedMap<Key, Info<T, R>> {
+
+    private final List<Info<T, R>> infos;
+    private final Key[] keys;
+    private final int[] order;
+    private final int start;
+    private final int finish;
+
+    /**
+     * Constructor.
+     *
+     * @param infos
+     *            batch of records
+     * @param keys
+     *            keys of the records in the batch
+     * @param order
+     *            indexes into the batch, in key order from start to finish
+     * @param start
+     *            start position in order inclusive
+     * @param finish
+     *            finish position in order exclusive
+     */
+    SortedRange(List<Info<T, R>> infos, Key[] keys, int[] order, int start, int finish) {
+        this.infos = infos;
+        this.keys = keys;
+        this.order = order;
+        this.start = start;
+        this.finish = finish;
+    }
+
+    @Override
+    public Set<Entry<Key, Info<T, R>>> entrySet() {
+        return new AbstractSet<Entry<Key, Info<T, R>>>() {
+
+            @Override
+            public Iterator<Entry<Key, Info<T, R>>> iterator() {
+                return new Iterator<Entry<Key, Info<T, R>>>() {
+
+                    private int i = start;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < finish;
+                    }
+
+                    @Override
+                    public Entry<Key, Info<T, R>> next() {
+                        if (i >= finish)
+                            throw new NoSuchElementException();
+                        int index = order[i++];
+                        return new SimpleImmutableEntry<Key, Info<T, R>>(keys[index],
+                                infos.get(index));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return finish - start;
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super Key> comparator() {
+        // natural ordering
+        return null;
+    }
+
+    @Override
+    public Key firstKey() {
+        if (start == finish)
+            throw new NoSuchElementException();
+        return keys[order[start]];
+    }
+
+    @Override
+    public Key lastKey() {
+        if (start == finish)
+            throw new NoSuchElementException();
+        return keys[order[finish - 1]];
+    }
+
+    @Override
+    public SortedMap<Key, Info<T, R>> subMap(Key fromKey, Key toKey) {
+        Preconditions.checkArgument(fromKey.compareTo(toKey) <= 0, "fromKey > toKey");
+        return new SortedRange<T, R>(infos, keys, order, lowerBound(fromKey),
+                lowerBound(toKey));
+    }
+
+    @Override
+    public SortedMap<Key, Info<T, R>> headMap(Key toKey) {
+        return new SortedRange<T, R>(infos, keys, order, start, lowerBound(toKey));
+    }
+
+    @Override
+    public SortedMap<Key, Info<T, R>> tailMap(Key fromKey) {
+        return new SortedRange<T, R>(infos, keys, order, lowerBound(fromKey), finish);
+    }
+
+    /**
+     * Returns the first position in the range whose key is &gt;= key.
+     */
+    private int lowerBound(Key key) {
+        int lo = start;
+        int hi = finish;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[order[mid]].compareTo(key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+}
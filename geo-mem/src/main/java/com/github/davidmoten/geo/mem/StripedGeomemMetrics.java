@@ -0,0 +1,125 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link GeomemMetrics} accumulated in striped counters ({@link LongAdder}s)
+ * so that recording from many threads is cheap. Read the totals at any time,
+ * for example to compare records scanned with records returned when choosing
+ * the maximum number of covering geohashes.
+ */
+public final class StripedGeomemMetrics implements GeomemMetrics {
+
+    private final LatencyHistogram insertLatency = new LatencyHistogram();
+    private final LongAdder recordsInserted = new LongAdder();
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+    private final LongAdder cells = new LongAdder();
+    private final LongAdder recordsScanned = new LongAdder();
+    private final LongAdder recordsReturned = new LongAdder();
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+
+    @Override
+    public void inserted(int records, long nanos) {
+        recordsInserted.add(records);
+        insertLatency.record(nanos);
+    }
+
+    @Override
+    public void queried(int cells, long scanned, long returned, long nanos) {
+        this.cells.add(cells);
+        recordsScanned.add(scanned);
+        recordsReturned.add(returned);
+        queryLatency.record(nanos);
+    }
+
+    @Override
+    public void lockContended(long waitNanos) {
+        lockWaits.record(waitNanos);
+    }
+
+    /**
+     * Returns the latencies of adds and batch adds.
+     * 
+     * @return histogram
+     */
+    public LatencyHistogram insertLatency() {
+        return insertLatency;
+    }
+
+    /**
+     * Returns the number of records added.
+     * 
+     * @return count
+     */
+    public long recordsInserted() {
+        return recordsInserted.sum();
+    }
+
+    /**
+     * Returns the latencies of queries.
+     * 
+     * @return histogram
+     */
+    public LatencyHistogram queryLatency() {
+        return queryLatency;
+    }
+
+    /**
+     * Returns the number of queries.
+     * 
+     * @return count
+     */
+    public long queries() {
+        return queryLatency.count();
+    }
+
+    /**
+     * Returns the total number of covering geohash cells of the queries.
+     * 
+     * @return count
+     */
+    public long cells() {
+        return cells.sum();
+    }
+
+    /**
+     * Returns the total number of records tested by the region filter.
+     * 
+     * @return count
+     */
+    public long recordsScanned() {
+        return recordsScanned.sum();
+    }
+
+    /**
+     * Returns the total number of records returned by queries.
+     * 
+     * @return count
+     */
+    public long recordsReturned() {
+        return recordsReturned.sum();
+    }
+
+    /**
+     * Returns the proportion of the records scanned that were returned. A
+     * low selectivity means the covering cells are much larger than the
+     * bounding boxes queried. Returns 1 if no records were scanned.
+     * 
+     * @return records returned / records scanned
+     */
+    public double selectivity() {
+        long scanned = recordsScanned();
+        return scanned == 0 ? 1 : (double) recordsReturned() / scanned;
+    }
+
+    /**
+     * Returns the times waited for id index locks held by other threads (see
+     * {@link GeomemMetrics#lockContended(long)}).
+     * 
+     * @return histogram
+     */
+    public LatencyHistogram lockWaits() {
+        return lockWaits;
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Receives the records matching a standing query registered with
+ * {@link Geomem#subscribe}. Follows the contract of
+ * {@code java.util.concurrent.Flow.Subscriber} (without completion, as a
+ * standing query only ends when it is cancelled or fails) so that it can be
+ * adapted to a Flow subscriber directly.
+ *
+ * @param <T>
+ *            The type of the items received.
+ */
+public interface Subscriber<T> {
+
+    /**
+     * Called once before any other method with the subscription used to
+     * request records and to cancel.
+     *
+     * @param subscription
+     *            subscription
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Called for each matching record, never more times than requested.
+     * Calls are not concurrent.
+     *
+     * @param item
+     *            record
+     */
+    void onNext(T item);
+
+    /**
+     * Called when the subscription fails, for example because more records
+     * arrived than could be buffered while waiting for demand. No further
+     * methods are called.
+     *
+     * @param error
+     *            cause of the failure
+     */
+    void onError(Throwable error);
+
+}
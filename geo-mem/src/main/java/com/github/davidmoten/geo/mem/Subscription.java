@@ -0,0 +1,24 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Link between a {@link Geomem} standing query and its {@link Subscriber}.
+ * Follows the contract of {@code java.util.concurrent.Flow.Subscription}.
+ */
+public interface Subscription {
+
+    /**
+     * Adds n to the number of records the subscriber is ready to receive.
+     * Buffered records are delivered immediately.
+     *
+     * @param n
+     *            number of records, must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stops the delivery of records and discards buffered records. Records
+     * may still be delivered while the cancellation takes effect.
+     */
+    void cancel();
+
+}
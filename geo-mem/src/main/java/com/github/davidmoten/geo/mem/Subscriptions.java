@@ -0,0 +1,254 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.davidmoten.geo.GeoHash;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Standing queries on a {@link Geomem}. Subscriptions are indexed by the
+ * geohashes covering their bounding boxes so that an added record is matched
+ * by looking up each prefix of its geohash (12 lookups) rather than by
+ * testing every subscription.
+ *
+ * <p>
+ * Each subscription buffers up to bufferSize records while its subscriber
+ * has no outstanding demand. Records are delivered on the thread that adds
+ * them (or that requests them) and the subscription fails with an
+ * {@link IllegalStateException} if its buffer overflows, so that a slow
+ * subscriber never blocks adds.
+ *
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+final class Subscriptions<T, R> {
+
+    private final int bufferSize;
+
+    /**
+     * Subscriptions keyed by the map key of each geohash covering their
+     * bounding box.
+     */
+    private final ConcurrentMap<Long, Set<BoxSubscription>> byGeoHash = Maps
+            .newConcurrentMap();
+
+    /**
+     * Number of active subscriptions so that adds do no lookups when there
+     * are none.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    Subscriptions(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Registers a standing query and then calls onSubscribe of the subscriber.
+     * Registering first means that a subscriber that cancels in onSubscribe
+     * is removed again; records matched before onSubscribe returns are
+     * buffered and delivered when it returns.
+     *
+     * @param keys
+     *            map keys of the geohashes covering the bounding box of the
+     *            query, all of the same length
+     * @param filter
+     *            returns true for the records to be delivered
+     * @param subscriber
+     *            receives the records
+     */
+    void subscribe(long[] keys, Predicate<Info<T, R>> filter,
+            Subscriber<? super Info<T, R>> subscriber) {
+        BoxSubscription s = new BoxSubscription(keys, filter, subscriber);
+        active.incrementAndGet();
+        for (long key : keys) {
+            Set<BoxSubscription> set = byGeoHash.get(key);
+            if (set == null) {
+                Set<BoxSubscription> created = Sets.newConcurrentHashSet();
+                set = byGeoHash.putIfAbsent(key, created);
+                if (set == null)
+                    set = created;
+            }
+            set.add(s);
+        }
+        subscriber.onSubscribe(s);
+        s.start();
+    }
+
+    /**
+     * Returns the number of subscriptions that have not been cancelled.
+     *
+     * @return number of subscriptions
+     */
+    int size() {
+        return active.get();
+    }
+
+    /**
+     * Delivers a record just added to the subscriptions it matches.
+     *
+     * @param info
+     *            record
+     * @param hash
+     *            full length geohash of the record
+     */
+    void dispatch(Info<T, R> info, long hash) {
+        if (active.get() == 0)
+            return;
+        for (int i = 1; i <= GeoHash.MAX_HASH_LENGTH; i++) {
+            Set<BoxSubscription> set = byGeoHash
+                    .get(Geomem.key(hash, GeoHash.MAX_HASH_LENGTH, i));
+            if (set != null) {
+                for (BoxSubscription s : set)
+                    if (s.filter.apply(info))
+                        s.offer(info);
+            }
+        }
+    }
+
+    private final class BoxSubscription implements Subscription {
+
+        private final long[] keys;
+        final Predicate<Info<T, R>> filter;
+        private final Subscriber<? super Info<T, R>> subscriber;
+        private final Queue<Info<T, R>> queue = new ConcurrentLinkedQueue<Info<T, R>>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * Ensures only one thread delivers at a time, counting the calls to
+         * drain that have not yet been serviced. Starts at one so that
+         * nothing is delivered until {@link #start()} is called after
+         * onSubscribe.
+         */
+        private final AtomicInteger wip = new AtomicInteger(1);
+
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile Throwable error;
+
+        BoxSubscription(long[] keys, Predicate<Info<T, R>> filter,
+                Subscriber<? super Info<T, R>> subscriber) {
+            this.keys = keys;
+            this.filter = filter;
+            this.subscriber = subscriber;
+        }
+
+        void offer(Info<T, R> info) {
+            if (cancelled.get())
+                return;
+            if (queued.incrementAndGet() > bufferSize) {
+                queued.decrementAndGet();
+                fail(new IllegalStateException(
+                        "subscriber buffer of " + bufferSize + " records overflowed"));
+            } else
+                queue.offer(info);
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0)
+                fail(new IllegalArgumentException("request must be positive"));
+            else {
+                long r;
+                do {
+                    r = requested.get();
+                    if (r == Long.MAX_VALUE)
+                        break;
+                } while (!requested.compareAndSet(r, r + n < 0 ? Long.MAX_VALUE : r + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                active.decrementAndGet();
+                for (long key : keys) {
+                    Set<BoxSubscription> set = byGeoHash.get(key);
+                    if (set != null)
+                        set.remove(this);
+                }
+            }
+        }
+
+        private void fail(Throwable e) {
+            if (error == null)
+                error = e;
+        }
+
+        /**
+         * Delivers the records and requests that arrived during onSubscribe.
+         */
+        void start() {
+            drainLoop();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0)
+                return;
+            drainLoop();
+        }
+
+        private void drainLoop() {
+            int missed = 1;
+            while (true) {
+                long r = requested.get();
+                long emitted = 0;
+                while (!cancelled.get()) {
+                    Throwable e = error;
+                    if (e != null) {
+                        terminate(e);
+                        break;
+                    }
+                    if (emitted == r)
+                        break;
+                    Info<T, R> info = queue.poll();
+                    if (info == null)
+                        break;
+                    queued.decrementAndGet();
+                    try {
+                        subscriber.onNext(info);
+                    } catch (RuntimeException ex) {
+                        // subscribers must not throw, don't let it fail the add
+                        terminate(ex);
+                    }
+                    emitted++;
+                }
+                if (cancelled.get())
+                    queue.clear();
+                if (emitted != 0 && r != Long.MAX_VALUE)
+                    requested.addAndGet(-emitted);
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        /**
+         * Cancels the subscription and reports the error to the subscriber.
+         * If onError throws, that error goes to the uncaught exception
+         * handler of the current thread rather than to the adding thread.
+         */
+        private void terminate(Throwable e) {
+            cancel();
+            queue.clear();
+            try {
+                subscriber.onError(e);
+            } catch (RuntimeException ex) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.github.davidmoten.geo.mem;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of records by fixed width time bucket used to estimate the
+ * proportion of records in a time range. Counts are also kept for coarser
+ * buckets, each level FANOUT times wider than the one below, so that a count
+ * reads at most about 2 * FANOUT buckets per level however long the range.
+ */
+final class TimeHistogram {
+
+    private static final int FANOUT = 32;
+
+    /**
+     * With hourly buckets the widest level holds about 3.7 years.
+     */
+    private static final int LEVELS = 4;
+
+    private final long bucketWidth;
+
+    /**
+     * For each level maps bucket index (time / width of the level's buckets,
+     * rounded down) to count.
+     */
+    private final ConcurrentNavigableMap<Long, LongAdder>[] counts;
+
+    @SuppressWarnings("unchecked")
+    TimeHistogram(long bucketWidth) {
+        this.bucketWidth = bucketWidth;
+        this.counts = (ConcurrentNavigableMap<Long, LongAdder>[])
+                new ConcurrentNavigableMap<?, ?>[LEVELS];
+        for (int i = 0; i < LEVELS; i++)
+            counts[i] = new ConcurrentSkipListMap<Long, LongAdder>();
+    }
+
+    void add(long time) {
+        long index = Math.floorDiv(time, bucketWidth);
+        for (int i = 0; i < LEVELS; i++) {
+            bucket(i, index).increment();
+            index = Math.floorDiv(index, FANOUT);
+        }
+    }
+
+    void remove(long time) {
+        long index = Math.floorDiv(time, bucketWidth);
+        for (int i = 0; i < LEVELS; i++) {
+            bucket(i, index).decrement();
+            index = Math.floorDiv(index, FANOUT);
+        }
+    }
+
+    private LongAdder bucket(int level, long index) {
+        ConcurrentNavigableMap<Long, LongAdder> map = counts[level];
+        LongAdder count = map.get(index);
+        if (count == null) {
+            LongAdder created = new LongAdder();
+            count = map.putIfAbsent(index, created);
+            if (count == null)
+                count = created;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the estimated number of records where start &lt;= time &lt;
+     * finish assuming records are spread evenly within each bucket.
+     *
+     * @param start
+     *            start time inclusive
+     * @param finish
+     *            finish time exclusive
+     * @return estimated count
+     */
+    double count(long start, long finish) {
+        if (start >= finish)
+            return 0;
+        long first = Math.floorDiv(start, bucketWidth);
+        long last = Math.floorDiv(finish - 1, bucketWidth);
+        if (first == last)
+            return fraction(first, start, finish);
+        return fraction(first, start, finish) + fraction(last, start, finish)
+                + sum(0, first + 1, last);
+    }
+
+    /**
+     * Returns the count of the finest bucket with the given index in
+     * proportion to its overlap with start &lt;= time &lt; finish.
+     */
+    private double fraction(long index, long start, long finish) {
+        LongAdder count = counts[0].get(index);
+        if (count == null)
+            return 0;
+        long bucketStart = index * bucketWidth;
+        long from = Math.max(start, bucketStart);
+        long to = Math.min(finish, bucketStart + bucketWidth);
+        return count.sum() * (double) (to - from) / bucketWidth;
+    }
+
+    /**
+     * Returns the total count of the buckets of the level with from &lt;=
+     * index &lt; to, using the next level for the whole buckets of that level
+     * within the range.
+     */
+    private long sum(int level, long from, long to) {
+        if (from >= to)
+            return 0;
+        if (level == LEVELS - 1 || to - from < 2 * FANOUT)
+            return sumEach(level, from, to);
+        // whole buckets of the next level
+        long coarseFrom = -Math.floorDiv(-from, FANOUT);
+        long coarseTo = Math.floorDiv(to, FANOUT);
+        return sumEach(level, from, coarseFrom * FANOUT)
+                + sum(level + 1, coarseFrom, coarseTo)
+                + sumEach(level, coarseTo * FANOUT, to);
+    }
+
+    private long sumEach(int level, long from, long to) {
+        if (from >= to)
+            return 0;
+        long total = 0;
+        for (LongAdder count : counts[level].subMap(from, to).values())
+            total += count.sum();
+        return total;
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.github.davidmoten.geo.mem;
+
+/**
+ * Receives the results of a {@link Geomem} query one at a time and can stop
+ * the query early.
+ *
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+public interface Visitor<T, R> {
+
+    /**
+     * Called for each record found by the query.
+     *
+     * @param info
+     *            record found
+     * @return true to continue the query, false to stop it
+     */
+    boolean visit(Info<T, R> info);
+
+}
@@ -0,0 +1,456 @@
+package com.github.davidmoten.geo.mem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * An append-only log of the records added to a {@link Geomem} so that they can
+ * be replayed after a crash. Appends are buffered in memory and written and
+ * forced to disk together (group commit) by a background thread every
+ * fsyncIntervalMs, so a crash loses at most the records appended in the last
+ * interval. Call {@link #sync()} to force buffered records to disk
+ * immediately.
+ *
+ * <p>
+ * Each record is written as its length, a CRC32 checksum and then the time,
+ * latitude, longitude, serialized value and optional serialized id. A torn
+ * record at the end of the log (from a crash during a write) is ignored on
+ * replay and truncated when the log is next opened.
+ *
+ * @param <T>
+ *            The type of the record with position and time.
+ * @param <R>
+ *            The type of the id of the record with position and time.
+ */
+public final class WriteAheadLog<T, R> implements Closeable {
+
+    /**
+     * Buffered bytes above which an append writes the buffer to the file
+     * (without forcing it to disk) rather than waiting for the background
+     * thread.
+     */
+    private static final int MAX_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private final File file;
+    private final Serializer<T> valueSerializer;
+    private final Serializer<R> idSerializer;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Thread flusher;
+
+    /**
+     * Guards buffer, closed and error. Notified when the log is closed.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Guards writes to channel. Held while a buffer is swapped out and
+     * written so that buffers are written in order. Always acquired before
+     * lock.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Position of channel when it was last forced to disk, -1 before the
+     * first force. Guarded by writeLock.
+     */
+    private long forcedPosition = -1;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private boolean closed;
+    private IOException error;
+
+    private WriteAheadLog(File file, Serializer<T> valueSerializer, Serializer<R> idSerializer,
+            final long fsyncIntervalMs) throws IOException {
+        this.file = file;
+        this.valueSerializer = valueSerializer;
+        this.idSerializer = idSerializer;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        // discard a torn record left by a crash so that appends follow the
+        // last valid record and are not lost behind it on replay
+        try {
+            long end = scan(channel, valueSerializer, idSerializer, null);
+            if (end < channel.size()) {
+                channel.truncate(end);
+                channel.force(true);
+            }
+            channel.position(end);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushPeriodically(fsyncIntervalMs);
+            }
+        }, "geomem-wal-" + file.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Opens the log file for appending, creating it if it does not exist.
+     * Existing records are retained and can be read with {@link #read()}. A
+     * torn record at the end of the file is truncated.
+     *
+     * @param file
+     *            log file
+     * @param valueSerializer
+     *            serializes record values
+     * @param idSerializer
+     *            serializes record ids
+     * @param fsyncIntervalMs
+     *            interval in ms between forcing appended records to disk
+     * @param <T>
+     *            The type of the record with position and time.
+     * @param <R>
+     *            The type of the id of the record with position and time.
+     * @return log
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public static <T, R> WriteAheadLog<T, R> open(File file, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer, long fsyncIntervalMs) throws IOException {
+        Preconditions.checkArgument(fsyncIntervalMs > 0, "fsyncIntervalMs must be positive");
+        return new WriteAheadLog<T, R>(file, valueSerializer, idSerializer, fsyncIntervalMs);
+    }
+
+    /**
+     * Appends a record to the log. The record is durable after the next group
+     * commit or call to {@link #sync()}.
+     *
+     * @param info
+     *            record to append
+     * @throws UncheckedIOException
+     *             if a previous write to the log failed
+     */
+    public void append(Info<T, R> info) {
+        byte[] record = toBytes(info);
+        boolean full;
+        synchronized (lock) {
+            checkState();
+            ensureCapacity(record.length);
+            buffer.put(record);
+            full = buffer.position() >= MAX_BUFFER_BYTES;
+        }
+        if (full)
+            flush(false);
+    }
+
+    /**
+     * Appends records to the log.
+     *
+     * @param infos
+     *            records to append
+     */
+    public void appendAll(Iterable<Info<T, R>> infos) {
+        for (Info<T, R> info : infos)
+            append(info);
+    }
+
+    /**
+     * Writes buffered records and forces them to disk.
+     *
+     * @throws UncheckedIOException
+     *             if the write fails
+     */
+    public void sync() {
+        flush(true);
+    }
+
+    /**
+     * Returns the records in the log in the order they were appended. Records
+     * appended but not yet written to the file are not included.
+     *
+     * @return records
+     * @throws IOException
+     *             if the log cannot be read
+     */
+    public List<Info<T, R>> read() throws IOException {
+        return read(file, valueSerializer, idSerializer);
+    }
+
+    /**
+     * Returns the records in a log file in the order they were appended,
+     * ignoring a torn record at the end of the file.
+     *
+     * @param file
+     *            log file
+     * @param valueSerializer
+     *            deserializes record values
+     * @param idSerializer
+     *            deserializes record ids
+     * @param <T>
+     *            The type of the record with position and time.
+     * @param <R>
+     *            The type of the id of the record with position and time.
+     * @return records
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static <T, R> List<Info<T, R>> read(File file, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer) throws IOException {
+        List<Info<T, R>> list = Lists.newArrayList();
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            scan(f.getChannel(), valueSerializer, idSerializer, list);
+        } finally {
+            f.close();
+        }
+        return list;
+    }
+
+    /**
+     * Reads the valid records from the start of the log, stopping at the end
+     * of the file or at a torn or corrupt record.
+     *
+     * @return position after the last valid record
+     */
+    private static <T, R> long scan(FileChannel ch, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer, List<Info<T, R>> list) throws IOException {
+        long size = ch.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (position + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(ch, header, position);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < 0 || position + RECORD_HEADER_BYTES + length > size)
+                break;
+            ByteBuffer bb = ByteBuffer.allocate(length);
+            readFully(ch, bb, position + RECORD_HEADER_BYTES);
+            if (crc != crc(bb.array(), 0, length))
+                break;
+            if (list != null) {
+                bb.flip();
+                list.add(fromBytes(bb, valueSerializer, idSerializer));
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    /**
+     * Discards all records in the log including buffered records. For use
+     * after a snapshot has been written while no records were being added.
+     *
+     * @throws UncheckedIOException
+     *             if the file cannot be truncated
+     */
+    public void truncate() {
+        synchronized (writeLock) {
+            synchronized (lock) {
+                checkState();
+                buffer.clear();
+            }
+            try {
+                channel.truncate(0);
+                channel.force(true);
+                forcedPosition = 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes and forces buffered records to disk, stops the background thread
+     * and closes the file.
+     *
+     * @throws IOException
+     *             if the final write or close fails
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+            // wake the background thread rather than interrupting it because
+            // an interrupt during a write closes the channel
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            synchronized (writeLock) {
+                ByteBuffer b;
+                synchronized (lock) {
+                    if (error != null)
+                        throw error;
+                    b = swapBuffer();
+                }
+                writeAndForce(b, true);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void flushPeriodically(long fsyncIntervalMs) {
+        while (true) {
+            synchronized (lock) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMs);
+                long remaining;
+                while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed)
+                    return;
+            }
+            try {
+                flush(true);
+            } catch (RuntimeException e) {
+                // closed or failed, failure is reported to appenders
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the buffer holding the appended records and replaces it with an
+     * empty buffer if any records were appended. Must hold lock.
+     */
+    private ByteBuffer swapBuffer() {
+        if (buffer.position() == 0)
+            return ByteBuffer.allocate(0);
+        ByteBuffer b = buffer;
+        buffer = ByteBuffer.allocate(b.capacity());
+        b.flip();
+        return b;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer b = ByteBuffer
+                    .allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            b.put(buffer);
+            buffer = b;
+        }
+    }
+
+    /**
+     * Writes the buffered records to the file and optionally forces them to
+     * disk.
+     */
+    private void flush(boolean force) {
+        synchronized (writeLock) {
+            ByteBuffer b;
+            synchronized (lock) {
+                checkState();
+                b = swapBuffer();
+            }
+            try {
+                writeAndForce(b, force);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    if (error == null)
+                        error = e;
+                }
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void writeAndForce(ByteBuffer b, boolean force) throws IOException {
+        while (b.hasRemaining())
+            channel.write(b);
+        if (force) {
+            long position = channel.position();
+            // an idle log is not forced every interval
+            if (position != forcedPosition) {
+                channel.force(false);
+                forcedPosition = position;
+            }
+        }
+    }
+
+    private void checkState() {
+        if (closed)
+            throw new IllegalStateException("write ahead log is closed");
+        if (error != null)
+            throw new UncheckedIOException("previous write to log failed", error);
+    }
+
+    private byte[] toBytes(Info<T, R> info) {
+        byte[] value = valueSerializer.serialize(info.value());
+        byte[] id = info.id().isPresent() ? idSerializer.serialize(info.id().get()) : null;
+        int length = 8 + 8 + 8 + 4 + value.length + 1 + (id == null ? 0 : 4 + id.length);
+        ByteBuffer bb = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+        bb.putInt(length);
+        bb.putInt(0);
+        bb.putLong(info.time());
+        bb.putDouble(info.lat());
+        bb.putDouble(info.lon());
+        bb.putInt(value.length);
+        bb.put(value);
+        if (id == null)
+            bb.put((byte) 0);
+        else {
+            bb.put((byte) 1);
+            bb.putInt(id.length);
+            bb.put(id);
+        }
+        bb.putInt(4, crc(bb.array(), RECORD_HEADER_BYTES, length));
+        return bb.array();
+    }
+
+    private static <T, R> Info<T, R> fromBytes(ByteBuffer bb, Serializer<T> valueSerializer,
+            Serializer<R> idSerializer) {
+        long time = bb.getLong();
+        double lat = bb.getDouble();
+        double lon = bb.getDouble();
+        byte[] value = new byte[bb.getInt()];
+        bb.get(value);
+        Optional<R> id;
+        if (bb.get() == 1) {
+            byte[] idBytes = new byte[bb.getInt()];
+            bb.get(idBytes);
+            id = Optional.of(idSerializer.deserialize(idBytes));
+        } else
+            id = Optional.absent();
+        return new Info<T, R>(lat, lon, time, valueSerializer.deserialize(value), id);
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer bb, long position)
+            throws IOException {
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, position + bb.position());
+            if (n < 0)
+                throw new IOException("unexpected end of file");
+        }
+    }
+
+}
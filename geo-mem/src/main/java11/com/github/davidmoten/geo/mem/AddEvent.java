@@ -0,0 +1,22 @@
+package com.github.davidmoten.geo.mem;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for an add or batch add to a {@link Geomem}.
+ */
+@Name("com.github.davidmoten.geo.mem.Add")
+@Label("Geomem Add")
+@Category("Geohash")
+@Description("Add of records")
+final class AddEvent extends Event {
+
+    @Label("Records")
+    @Description("Number of records added")
+    int records;
+
+}
@@ -0,0 +1,70 @@
+package com.github.davidmoten.geo.mem;
+
+import jdk.jfr.EventType;
+
+/**
+ * Emits JDK Flight Recorder events for {@link Geomem} adds and queries.
+ * Replaces the Java 8 version (which does nothing) on Java 11 and later. When
+ * an event type is disabled no event is created so the cost is a check of a
+ * flag.
+ */
+final class FlightRecorderEvents {
+
+    private static final EventType QUERY = EventType.getEventType(QueryEvent.class);
+    private static final EventType ADD = EventType.getEventType(AddEvent.class);
+
+    private FlightRecorderEvents() {
+        // prevent instantiation
+    }
+
+    static boolean queryEnabled() {
+        return QUERY.isEnabled();
+    }
+
+    static Object beginQuery() {
+        if (!QUERY.isEnabled())
+            return null;
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitQuery(Object event, QueryMeter query, long scanned, long returned) {
+        if (event == null)
+            return;
+        QueryEvent e = (QueryEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.topLeftLat = query.topLeftLat();
+            e.topLeftLon = query.topLeftLon();
+            e.bottomRightLat = query.bottomRightLat();
+            e.bottomRightLon = query.bottomRightLon();
+            e.start = query.start();
+            e.finish = query.finish();
+            e.cells = query.cells();
+            e.scanned = scanned;
+            e.returned = returned;
+            e.commit();
+        }
+    }
+
+    static Object beginAdd() {
+        if (!ADD.isEnabled())
+            return null;
+        AddEvent event = new AddEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitAdd(Object event, int records) {
+        if (event == null)
+            return;
+        AddEvent e = (AddEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.records = records;
+            e.commit();
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.github.davidmoten.geo.mem;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timestamp;
+
+/**
+ * JDK Flight Recorder event for a {@link Geomem} bounding box query. The
+ * duration of a lazy query is from the start of the iteration of its results
+ * to their end, so includes the time taken by the consumer.
+ */
+@Name("com.github.davidmoten.geo.mem.Query")
+@Label("Geomem Query")
+@Category("Geohash")
+@Description("Search of a bounding box and time range")
+final class QueryEvent extends Event {
+
+    @Label("Top Left Latitude")
+    double topLeftLat;
+
+    @Label("Top Left Longitude")
+    double topLeftLon;
+
+    @Label("Bottom Right Latitude")
+    double bottomRightLat;
+
+    @Label("Bottom Right Longitude")
+    double bottomRightLon;
+
+    @Label("Start")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    long start;
+
+    @Label("Finish")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    long finish;
+
+    @Label("Cells")
+    @Description("Number of geohash cells covering the box")
+    int cells;
+
+    @Label("Scanned")
+    @Description("Number of records in the time range of the cells tested by the region filter")
+    long scanned;
+
+    @Label("Returned")
+    @Description("Number of records returned")
+    long returned;
+
+}
@@ -0,0 +1,152 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.Lists;
+
+public class AdaptiveGeomemTest {
+
+    @Test
+    public void testAdaptiveAgreesWithGeomem() {
+        Random r = new Random(5);
+        Geomem<String, String> g = new Geomem<String, String>();
+        AdaptiveGeomem<String, String> a = new AdaptiveGeomem<String, String>(16);
+        for (int i = 0; i < 5000; i++) {
+            double lat;
+            double lon;
+            if (i % 2 == 0) {
+                // dense cluster
+                lat = -33.85 + r.nextDouble() * 0.001;
+                lon = 151.2 + r.nextDouble() * 0.001;
+            } else {
+                lat = r.nextDouble() * 120 - 60;
+                lon = r.nextDouble() * 300 - 150;
+            }
+            long time = r.nextInt(1000);
+            g.add(lat, lon, time, "A" + i, "a");
+            a.add(lat, lon, time, "A" + i, "a");
+        }
+        double[][] boxes = { { 60, -150, -60, 150 }, { -5, 100, -45, 170 },
+                { -33.8, 151.1, -33.9, 151.3 }, { -33.8502, 151.2002, -33.8505, 151.2005 },
+                { 90, -180, -90, 180 } };
+        for (double[] b : boxes) {
+            assertEquals(sorted(g.find(b[0], b[1], b[2], b[3], 0, 1000)),
+                    sorted(a.find(b[0], b[1], b[2], b[3], 0, 1000)));
+            assertEquals(sorted(g.find(b[0], b[1], b[2], b[3], 250, 750)),
+                    sorted(a.find(b[0], b[1], b[2], b[3], 250, 750)));
+        }
+        // the dense cluster is split finely
+        assertTrue(a.leafCount() > 32);
+    }
+
+    @Test
+    public void testLatestAndTracksAgreeWithGeomem() {
+        Random r = new Random(6);
+        Geomem<String, String> g = new Geomem<String, String>();
+        AdaptiveGeomem<String, String> a = new AdaptiveGeomem<String, String>(8);
+        for (int i = 0; i < 5000; i++) {
+            double lat = -10 - r.nextDouble() * 20;
+            double lon = 110 + r.nextDouble() * 30;
+            // times out of order so that some records are not the latest
+            long time = r.nextInt(1000);
+            String id = "a" + r.nextInt(100);
+            g.add(lat, lon, time, "A" + i, id);
+            a.add(lat, lon, time, "A" + i, id);
+        }
+        double[][] boxes = { { -5, 100, -45, 170 }, { -12, 115, -18, 125 },
+                { 90, -180, -90, 180 } };
+        for (double[] b : boxes)
+            assertEquals(sorted(g.findLatest(b[0], b[1], b[2], b[3])),
+                    sorted(a.findLatest(b[0], b[1], b[2], b[3])));
+        assertEquals(100, sorted(a.findLatest(-5, 100, -45, 170)).size());
+        for (int i = 0; i < 100; i++) {
+            String id = "a" + i;
+            assertEquals(g.findLatest(id).get().time(), a.findLatest(id).get().time());
+            assertEquals(values(g.findTrack(id, 200, 700)), values(a.findTrack(id, 200, 700)));
+        }
+        assertFalse(a.findLatest("b").isPresent());
+    }
+
+    @Test
+    public void testTimeRange() {
+        AdaptiveGeomem<String, String> a = new AdaptiveGeomem<String, String>(2);
+        for (int i = 0; i < 10; i++)
+            a.add(-15, 120, i * 100, "A" + i, "a");
+        assertEquals(Lists.newArrayList("A2", "A3", "A4"),
+                sorted(a.find(-5, 100, -45, 170, 200, 500)));
+    }
+
+    @Test
+    public void testConcurrentAdds() throws InterruptedException {
+        final AdaptiveGeomem<String, String> a = new AdaptiveGeomem<String, String>(8);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Random r = new Random(thread);
+                    for (int i = 0; i < 2000; i++)
+                        a.add(-15 - r.nextDouble(), 120 + r.nextDouble(), i,
+                                "A" + thread + "-" + i, "a");
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(8000, Lists.newArrayList(a.find(-5, 100, -45, 170, 0, 2000)).size());
+    }
+
+    @Test
+    public void testQueriesSeeRecordsAddedBeforeConcurrentSplits() throws InterruptedException {
+        final AdaptiveGeomem<String, String> a = new AdaptiveGeomem<String, String>(4);
+        final AtomicInteger added = new AtomicInteger();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random r = new Random(7);
+                for (int i = 0; i < 20000; i++) {
+                    a.add(-15 - r.nextDouble() * 0.01, 120 + r.nextDouble() * 0.01, i, "A" + i,
+                            "a");
+                    added.incrementAndGet();
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            int before = added.get();
+            int found = Lists.newArrayList(a.find(-5, 100, -45, 170, 0, 20000)).size();
+            assertTrue(found >= before, found + " < " + before);
+        }
+        writer.join();
+        assertEquals(20000, Lists.newArrayList(a.find(-5, 100, -45, 170, 0, 20000)).size());
+    }
+
+    private static List<String> values(Iterable<Info<String, String>> infos) {
+        List<String> list = Lists.newArrayList();
+        for (Info<String, String> info : infos)
+            list.add(info.value());
+        return list;
+    }
+
+    private static List<String> sorted(Iterable<Info<String, String>> infos) {
+        List<String> list = Lists.newArrayList();
+        for (Info<String, String> info : infos)
+            list.add(info.value());
+        Collections.sort(list);
+        return list;
+    }
+
+}
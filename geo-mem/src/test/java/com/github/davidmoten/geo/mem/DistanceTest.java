@@ -0,0 +1,47 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class DistanceTest {
+
+    @Test
+    public void testEquirectangularDoesNotExceedHaversineInsideCircle() {
+        Random r = new Random(3);
+        for (int k = 0; k < 2000; k++) {
+            double lat = r.nextDouble() * 170 - 85;
+            double radius = Math.pow(10, r.nextDouble() * 6);
+            double deltaLat = Math.toDegrees(radius / Distance.EARTH_RADIUS_METRES);
+            if (Math.abs(lat) + deltaLat >= 90)
+                continue;
+            double deltaLon = deltaLat / Math.cos(Math.toRadians(lat));
+            double cosLat = Math.cos(Math.toRadians(Math.abs(lat) + deltaLat));
+            for (int i = 0; i < 100; i++) {
+                double lat2 = lat + (r.nextDouble() * 2 - 1) * deltaLat;
+                double lon2 = (r.nextDouble() * 2 - 1) * deltaLon;
+                double d = Distance.haversine(lat, 0, lat2, lon2);
+                if (d <= radius)
+                    assertTrue(Math.sqrt(Distance.equirectangularSquared(lat, 0, lat2, lon2,
+                            cosLat)) <= d * 1.000001 + 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testEquirectangularRejectsPointOutsideRadiusInLongitude() {
+        // inside the latitude band of a 10km circle at 60N but too far east
+        double cosLat = Math.cos(Math.toRadians(60 + 0.09));
+        assertTrue(Distance.latitudeDistance(60, 60.08) <= 10000);
+        assertTrue(Distance.equirectangularSquared(60, 10, 60.08, 10.17, cosLat) > 10000.0 * 10000);
+        assertTrue(Distance.haversine(60, 10, 60.08, 10.17) > 10000);
+    }
+
+    @Test
+    public void testEquirectangularAcrossAntimeridian() {
+        assertTrue(Distance.equirectangularSquared(0, 179.95, 0, -179.95, 1) < 12000.0 * 12000);
+    }
+
+}
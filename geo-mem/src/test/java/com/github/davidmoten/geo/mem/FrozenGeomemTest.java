@@ -0,0 +1,114 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.Lists;
+
+public class FrozenGeomemTest {
+
+    @Test
+    public void testFrozenAgreesWithGeomem() {
+        Random r = new Random(11);
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 5000; i++) {
+            g.add(-r.nextDouble() * 60, 90 + r.nextDouble() * 90, r.nextInt(1000), "A" + i,
+                    "a" + (i % 100));
+        }
+        FrozenGeomem<String, String> f = g.freeze();
+        assertEquals(5000, f.size());
+        assertSameResults(g, f, -5, 100, -45, 170, 0, 1000);
+        assertSameResults(g, f, -5, 100, -45, 170, 200, 300);
+        assertSameResults(g, f, -10.5, 120.3, -10.7, 120.5, 0, 1000);
+        assertSameResults(g, f, 90, -180, -90, 180, 0, 1000);
+        assertSameResults(g, f, 10, 100, 5, 110, 0, 1000);
+    }
+
+    @Test
+    public void testFrozenAgreesWithGeomemForDenseCluster() {
+        Random r = new Random(12);
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 20000; i++) {
+            if (i % 4 == 0)
+                g.add(-r.nextDouble() * 60, 90 + r.nextDouble() * 90, r.nextInt(1000), "A" + i,
+                        "a");
+            else
+                // cells are longer than some of the covering hashes
+                g.add(-33.85 - r.nextDouble() * 0.01, 151.2 + r.nextDouble() * 0.01,
+                        r.nextInt(1000), "A" + i, "a");
+        }
+        FrozenGeomem<String, String> f = g.freeze();
+        assertEquals(20000, f.size());
+        assertSameResults(g, f, -5, 100, -45, 170, 0, 1000);
+        assertSameResults(g, f, -5, 100, -45, 170, 200, 201);
+        assertSameResults(g, f, -33.8, 151.1, -33.9, 151.3, 400, 600);
+        assertSameResults(g, f, -33.851, 151.201, -33.853, 151.205, 0, 1000);
+        assertSameResults(g, f, -33.8501, 151.2001, -33.8502, 151.2002, 0, 1000);
+        assertSameResults(g, f, 90, -180, -90, 180, 999, 1000);
+    }
+
+    @Test
+    public void testFreezeTimePartition() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 100, "A1", "a");
+        g.add(-15, 120, 200, "A2", "a");
+        g.add(-15, 120, 300, "A3", "a");
+        FrozenGeomem<String, String> f = g.freeze(150, 300);
+        assertEquals(1, f.size());
+        List<Info<String, String>> list = Lists
+                .newArrayList(f.find(-5, 100, -45, 170, 0, 1000));
+        assertEquals(1, list.size());
+        assertEquals("A2", list.get(0).value());
+    }
+
+    @Test
+    public void testFrozenEmpty() {
+        FrozenGeomem<String, String> f = new Geomem<String, String>().freeze();
+        assertEquals(0, f.size());
+        assertTrue(Lists.newArrayList(f.find(-5, 100, -45, 170, 0, 1000)).isEmpty());
+    }
+
+    @Test
+    public void testLowerBound() {
+        long[] a = new long[] { 1, 3, 3, 3, 5 };
+        assertEquals(0, FrozenGeomem.lowerBound(a, 0));
+        assertEquals(0, FrozenGeomem.lowerBound(a, 1));
+        assertEquals(1, FrozenGeomem.lowerBound(a, 2));
+        assertEquals(1, FrozenGeomem.lowerBound(a, 3));
+        assertEquals(4, FrozenGeomem.lowerBound(a, 4));
+        assertEquals(5, FrozenGeomem.lowerBound(a, 6));
+    }
+
+    @Test
+    public void testMerge() {
+        assertArrayEquals(new int[] { 1, 4, 6, 7 },
+                FrozenGeomem.merge(new int[] { 6, 7, 2, 4, 1, 3, 5, 5, 3, 4 }));
+        assertArrayEquals(new int[] {}, FrozenGeomem.merge(new int[] { 2, 2 }));
+    }
+
+    private static void assertSameResults(Geomem<String, String> g,
+            FrozenGeomem<String, String> f, double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, long start, long finish) {
+        // frozen records are new Info objects so compare values
+        List<String> expected = values(
+                g.find(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, start, finish));
+        List<String> actual = values(
+                f.find(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, start, finish));
+        assertEquals(expected, actual);
+    }
+
+    private static List<String> values(Iterable<Info<String, String>> infos) {
+        List<String> list = Lists.newArrayList();
+        for (Info<String, String> info : infos)
+            list.add(info.value());
+        Collections.sort(list);
+        return list;
+    }
+}
@@ -0,0 +1,201 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+public class GeomemSnapshotTest {
+
+    static final Serializer<String> STRING_SERIALIZER = new Serializer<String>() {
+
+        @Override
+        public byte[] serialize(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 500, "A1", "a");
+        g.add(-15, 120, 500, "A2", "a");
+        g.add(-16, 121, 400, "B1", "b");
+        g.add(40, -70, 300, "C1", Optional.<String> absent());
+        g.add(40, -70, 300, "", "");
+        File file = File.createTempFile("geomem", ".snapshot");
+        try {
+            GeomemSnapshot.write(g, file, STRING_SERIALIZER, STRING_SERIALIZER);
+            Geomem<String, String> g2 = GeomemSnapshot.read(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER);
+            List<Info<String, String>> list = Lists
+                    .newArrayList(g2.find(90, -180, -90, 180, 0, 1000, Order.ASCENDING, 100));
+            assertEquals(5, list.size());
+            assertEquals("C1", list.get(0).value());
+            assertFalse(list.get(0).id().isPresent());
+            assertEquals("", list.get(1).value());
+            assertEquals("", list.get(1).id().get());
+            assertEquals("B1", list.get(2).value());
+            assertEquals("A1", list.get(3).value());
+            assertEquals("A2", list.get(4).value());
+            assertEquals(-15, list.get(3).lat(), 0.0000001);
+            assertEquals(120, list.get(3).lon(), 0.0000001);
+            assertEquals("A2", g2.findLatest("a").get().value());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testWriteAndReadEmpty() throws IOException {
+        File file = File.createTempFile("geomem", ".snapshot");
+        try {
+            GeomemSnapshot.write(new Geomem<String, String>(), file, STRING_SERIALIZER,
+                    STRING_SERIALIZER);
+            Geomem<String, String> g = GeomemSnapshot.read(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER);
+            assertTrue(Lists.newArrayList(g.find(90, -180, -90, 180, 0, 1000)).isEmpty());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testWriteReplacesExistingSnapshotWithoutLeavingTemporaryFiles()
+            throws IOException {
+        File dir = Files.createTempDirectory("geomem").toFile();
+        File file = new File(dir, "geomem.snapshot");
+        try {
+            Geomem<String, String> g = new Geomem<String, String>();
+            g.add(-15, 120, 500, "A1", "a");
+            GeomemSnapshot.write(g, file, STRING_SERIALIZER, STRING_SERIALIZER);
+            g.add(-16, 121, 400, "B1", "b");
+            GeomemSnapshot.write(g, file, STRING_SERIALIZER, STRING_SERIALIZER);
+            assertArrayEquals(new String[] { file.getName() }, dir.list());
+            Geomem<String, String> g2 = GeomemSnapshot.read(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER);
+            assertEquals(2, Lists.newArrayList(g2.find(90, -180, -90, 180, 0, 1000)).size());
+        } finally {
+            file.delete();
+            assertTrue(dir.delete());
+        }
+    }
+
+    @Test
+    public void testReadAcrossMappedChunks() throws IOException {
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 100; i++)
+            g.add(-15 - i * 0.01, 120 + i * 0.01, i, Strings.repeat("v", i) + i,
+                    i % 3 == 0 ? Optional.<String> absent() : Optional.of("id" + i));
+        File file = File.createTempFile("geomem", ".snapshot");
+        try {
+            GeomemSnapshot.write(g, file, STRING_SERIALIZER, STRING_SERIALIZER);
+            List<Info<String, String>> expected = GeomemSnapshot.readInfos(file,
+                    STRING_SERIALIZER, STRING_SERIALIZER);
+            // chunks much smaller than the sections and the values
+            List<Info<String, String>> list = GeomemSnapshot.readInfos(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER, 16);
+            assertEquals(100, list.size());
+            for (int i = 0; i < list.size(); i++) {
+                assertEquals(expected.get(i).value(), list.get(i).value());
+                assertEquals(expected.get(i).id(), list.get(i).id());
+                assertEquals(expected.get(i).time(), list.get(i).time());
+                assertEquals(expected.get(i).lat(), list.get(i).lat(), 0.0);
+                assertEquals(expected.get(i).lon(), list.get(i).lon(), 0.0);
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testWriteAndReadMoreOffsetsThanOneBuffer() throws IOException {
+        Geomem<String, String> g = new Geomem<String, String>();
+        int n = 20000;
+        for (int i = 0; i < n; i++)
+            g.add(-15 - i * 0.0001, 120 + i * 0.0001, i, "A" + i,
+                    i % 3 == 0 ? Optional.<String> absent() : Optional.of("id" + i));
+        File file = File.createTempFile("geomem", ".snapshot");
+        try {
+            GeomemSnapshot.write(g, file, STRING_SERIALIZER, STRING_SERIALIZER);
+            List<Info<String, String>> list = GeomemSnapshot.readInfos(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER);
+            assertEquals(n, list.size());
+            for (Info<String, String> info : list) {
+                int i = (int) info.time();
+                assertEquals("A" + i, info.value());
+                assertEquals(i % 3 == 0 ? Optional.<String> absent() : Optional.of("id" + i),
+                        info.id());
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testReadIntoGeomemKeepsItsOptions() throws IOException {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 400, "A1", "a");
+        g.add(-15.5, 120.5, 500, "A2", "a");
+        g.add(-16, 121, 400, "B1", "b");
+        File file = File.createTempFile("geomem", ".snapshot");
+        try {
+            GeomemSnapshot.write(g, file, STRING_SERIALIZER, STRING_SERIALIZER);
+            StripedGeomemMetrics metrics = new StripedGeomemMetrics();
+            Geomem<String, String> g2 = GeomemSnapshot.read(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER, Geomem.<String, String> builder().upsert(true)
+                            .metrics(metrics).build());
+            assertEquals(3, metrics.recordsInserted());
+            // upsert keeps only the latest record of each id
+            List<Info<String, String>> list = Lists
+                    .newArrayList(g2.find(90, -180, -90, 180, 0, 1000, Order.ASCENDING, 100));
+            assertEquals(2, list.size());
+            assertEquals("B1", list.get(0).value());
+            assertEquals("A2", list.get(1).value());
+            // found by the stored geohash of its position
+            assertEquals("A2", Lists
+                    .newArrayList(g2.find(-15.4, 120.4, -15.6, 120.6, 0, 1000)).get(0).value());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testReadNotASnapshot() throws IOException {
+        final File file = File.createTempFile("geomem", ".snapshot");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[100]);
+            out.close();
+            assertThrows(IOException.class, new Executable() {
+                @Override
+                public void execute() throws Throwable {
+                    GeomemSnapshot.read(file, STRING_SERIALIZER, STRING_SERIALIZER);
+                }
+            });
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+}
@@ -1,11 +1,30 @@
 package com.github.davidmoten.geo.mem;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.davidmoten.geo.Base32;
+import com.github.davidmoten.geo.GeoHash;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -111,6 +130,879 @@ public class GeomemTest {
         assertTrue(list.isEmpty());
     }
 
+    @Test
+    public void testGeomemRetainsEntriesWithSameTimeInSameCell() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 500, "A1", "a1");
+        g.add(-15, 120, 500, "A2", "a2");
+        List<Info<String, String>> list = Lists.newArrayList(g.find(topLeftLat,
+                topLeftLong, bottomRightLat, bottomRightLong, 0, 1000));
+        assertEquals(2, list.size());
+        assertEquals("A1", list.get(0).value());
+        assertEquals("A2", list.get(1).value());
+    }
+
+    @Test
+    public void testGeomemAddAllWithSameTime() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        List<Info<String, String>> batch = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            batch.add(new Info<String, String>(-15, 120, 500, "A" + i,
+                    Optional.of("a" + (i % 10))));
+        }
+        g.addAll(batch);
+        List<Info<String, String>> list = Lists.newArrayList(g.find(topLeftLat,
+                topLeftLong, bottomRightLat, bottomRightLong, 0, 1000));
+        assertEquals(1000, list.size());
+        assertEquals("A0", list.get(0).value());
+        assertEquals("A999", list.get(999).value());
+        // time range excludes finish time
+        assertTrue(Lists.newArrayList(g.find(topLeftLat, topLeftLong,
+                bottomRightLat, bottomRightLong, 0, 500)).isEmpty());
+    }
+
+    @Test
+    public void testFindLatestReturnsOneRecordPerId() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 500, "A1", "a");
+        g.add(-16, 121, 600, "A2", "a");
+        g.add(-17, 122, 550, "A3", "a");
+        g.add(-20, 130, 100, "B1", "b");
+        g.add(-15, 120, 100, "C1", Optional.<String> absent());
+        List<Info<String, String>> list = Lists.newArrayList(g.findLatest(
+                topLeftLat, topLeftLong, bottomRightLat, bottomRightLong));
+        assertEquals(2, list.size());
+        assertEquals("A2", g.findLatest("a").get().value());
+        assertEquals("B1", g.findLatest("b").get().value());
+        assertFalse(g.findLatest("c").isPresent());
+    }
+
+    @Test
+    public void testFindLatestWhenIdMovesOutOfRegion() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 500, "A1", "a");
+        g.add(-15.0001, 120.0001, 600, "A2", "a");
+        List<Info<String, String>> list = Lists.newArrayList(g.findLatest(
+                topLeftLat, topLeftLong, bottomRightLat, bottomRightLong));
+        assertEquals(1, list.size());
+        assertEquals("A2", list.get(0).value());
+        g.add(15, 120, 700, "A3", "a");
+        assertTrue(Lists.newArrayList(g.findLatest(topLeftLat, topLeftLong,
+                bottomRightLat, bottomRightLong)).isEmpty());
+        // full history is still available
+        assertEquals(2, Lists.newArrayList(g.find(topLeftLat, topLeftLong,
+                bottomRightLat, bottomRightLong, 0, 1000)).size());
+    }
+
+    @Test
+    public void testKeyDistinguishesHashesWithLeadingZeros() {
+        assertNotEquals(Geomem.key("b"), Geomem.key("0b"));
+        long full = Base32.decodeBase32("0bcd");
+        assertEquals(Geomem.key("0b"), Geomem.key(full, 4, 2));
+        assertEquals(Geomem.key("0bcd"), Geomem.key(full, 4, 4));
+    }
+
+    @Test
+    public void testFindTrackReturnsRecordsOfIdInTimeOrder() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 500, "A1", "a");
+        g.add(40, -70, 300, "A2", "a");
+        g.add(-16, 121, 400, "A3", "a");
+        g.add(-16, 121, 450, "B1", "b");
+        g.add(-16, 121, 1000, "A4", "a");
+        List<Info<String, String>> list = Lists.newArrayList(g.findTrack("a", 0, 1000));
+        assertEquals(3, list.size());
+        assertEquals("A2", list.get(0).value());
+        assertEquals("A3", list.get(1).value());
+        assertEquals("A1", list.get(2).value());
+        assertTrue(Lists.newArrayList(g.findTrack("c", 0, 1000)).isEmpty());
+    }
+
+    @Test
+    public void testFindTrackWithinRegion() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 500, "A1", "a");
+        g.add(40, -70, 300, "A2", "a");
+        g.add(-16, 121, 400, "A3", "a");
+        List<Info<String, String>> list = Lists.newArrayList(g.findTrack("a", topLeftLat,
+                topLeftLong, bottomRightLat, bottomRightLong, 0, 1000));
+        assertEquals(2, list.size());
+        assertEquals("A3", list.get(0).value());
+        assertEquals("A1", list.get(1).value());
+    }
+
+    @Test
+    public void testFindTrackDownsampled() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 100; i++) {
+            g.add(-15, 120 + i * 0.01, i * 10, "A" + i, "a");
+        }
+        Iterable<Info<String, String>> track = g.findTrack("a", 0, 1000, 100);
+        List<Info<String, String>> list = Lists.newArrayList(track);
+        assertEquals(10, list.size());
+        assertEquals(0L, list.get(0).time());
+        assertEquals(900L, list.get(9).time());
+        // iterable can be iterated more than once
+        assertEquals(10, Lists.newArrayList(track).size());
+        assertEquals(10, Lists.newArrayList(g.findTrack("a", topLeftLat, topLeftLong,
+                bottomRightLat, bottomRightLong, 0, 1000, 100)).size());
+    }
+
+    @Test
+    public void testFindNearest() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-35.0, 149.0, 500, "A1", "a");
+        g.add(-35.1, 149.0, 600, "A2", "a");
+        g.add(-35.2, 149.0, 500, "B1", "b");
+        g.add(-36.0, 149.0, 500, "C1", "c");
+        g.add(-35.05, 149.0, 2000, "D1", "d");
+        g.add(10, -20, 500, "E1", "e");
+        List<Info<String, String>> list = g.findNearest(-35.0, 149.0, 0, 1000, 2);
+        assertEquals(2, list.size());
+        // one record per id
+        assertEquals("A1", list.get(0).value());
+        assertEquals("B1", list.get(1).value());
+        list = g.findNearest(-35.0, 149.0, 0, 1000, 10);
+        assertEquals(4, list.size());
+        assertEquals("E1", list.get(3).value());
+    }
+
+    @Test
+    public void testFindNearestAgreesWithBruteForce() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        List<Info<String, String>> all = Lists.newArrayList();
+        Random r = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            Info<String, String> info = new Info<String, String>(-30 - r.nextDouble() * 10,
+                    140 + r.nextDouble() * 10, 100, "A" + i, Optional.<String> absent());
+            all.add(info);
+            g.add(info);
+        }
+        final double lat = -35.3;
+        final double lon = 149.1;
+        Collections.sort(all, new Comparator<Info<String, String>>() {
+            @Override
+            public int compare(Info<String, String> a, Info<String, String> b) {
+                return Double.compare(Distance.haversine(lat, lon, a.lat(), a.lon()),
+                        Distance.haversine(lat, lon, b.lat(), b.lon()));
+            }
+        });
+        List<Info<String, String>> list = g.findNearest(lat, lon, 0, 1000, 20);
+        assertEquals(all.subList(0, 20), list);
+    }
+
+    @Test
+    public void testFindNearestWhenNoData() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        assertTrue(g.findNearest(-35.0, 149.0, 0, 1000, 5).isEmpty());
+    }
+
+    @Test
+    public void testFindWithin() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        // about 11km apart in latitude
+        g.add(-35.0, 149.0, 500, "A1", "a");
+        g.add(-35.1, 149.0, 500, "B1", "b");
+        g.add(-35.0, 149.1, 500, "C1", "c");
+        g.add(-35.0, 149.0, 5000, "D1", "d");
+        List<Info<String, String>> list = Lists
+                .newArrayList(g.findWithin(-35.0, 149.0, 10000, 0, 1000));
+        assertEquals(2, list.size());
+        list = Lists.newArrayList(g.findWithin(-35.0, 149.0, 12000, 0, 1000));
+        assertEquals(3, list.size());
+        list = Lists.newArrayList(g.findWithin(-35.0, 149.0, 1, 0, 1000));
+        assertEquals(1, list.size());
+        assertEquals("A1", list.get(0).value());
+    }
+
+    @Test
+    public void testFindWithinRejectsRecordsInLatitudeBandOutsideRadius() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        // about 9.5km east
+        g.add(60.0, 10.17, 500, "A1", "a");
+        // within 10km in latitude and longitude but about 13km away
+        g.add(60.08, 10.17, 500, "B1", "b");
+        g.add(59.92, 9.83, 500, "C1", "c");
+        List<Info<String, String>> list = Lists
+                .newArrayList(g.findWithin(60.0, 10.0, 10000, 0, 1000));
+        assertEquals(1, list.size());
+        assertEquals("A1", list.get(0).value());
+    }
+
+    @Test
+    public void testFindWithinAcrossAntimeridianAndPole() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(0, 179.95, 500, "A1", "a");
+        g.add(0, -179.95, 500, "B1", "b");
+        g.add(89.95, 0, 500, "C1", "c");
+        g.add(89.95, 180, 500, "D1", "d");
+        assertEquals(2, Lists
+                .newArrayList(g.findWithin(0, 180, 10000, 0, 1000)).size());
+        assertEquals(2, Lists
+                .newArrayList(g.findWithin(89.99, 90, 10000, 0, 1000)).size());
+    }
+
+    @Test
+    public void testFindOrderedWithLimit() {
+        Geomem<String, String> g = createGeomemWithSpreadOfTimes();
+        List<Info<String, String>> list = Lists.newArrayList(g.find(topLeftLat, topLeftLong,
+                bottomRightLat, bottomRightLong, 0, 1000, Order.ASCENDING, 1000));
+        assertEquals(100, list.size());
+        for (int i = 0; i < list.size(); i++)
+            assertEquals(i * 10L, list.get(i).time());
+        list = Lists.newArrayList(g.find(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 1000, Order.DESCENDING, 5));
+        assertEquals(5, list.size());
+        assertEquals(990L, list.get(0).time());
+        assertEquals(950L, list.get(4).time());
+        list = Lists.newArrayList(g.find(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 1000, Order.UNORDERED, 7));
+        assertEquals(7, list.size());
+    }
+
+    @Test
+    public void testStream() {
+        Geomem<String, String> g = createGeomemWithSpreadOfTimes();
+        assertEquals(990L, g.stream(topLeftLat, topLeftLong, bottomRightLat, bottomRightLong, 0,
+                1000, Order.DESCENDING, Integer.MAX_VALUE).findFirst().get().time());
+        assertEquals(100, g.stream(topLeftLat, topLeftLong, bottomRightLat, bottomRightLong, 0,
+                1000, Order.UNORDERED, Integer.MAX_VALUE).count());
+    }
+
+    @Test
+    public void testFindWithVisitorStopsEarly() {
+        Geomem<String, String> g = createGeomemWithSpreadOfTimes();
+        final List<Info<String, String>> list = Lists.newArrayList();
+        long count = g.find(topLeftLat, topLeftLong, bottomRightLat, bottomRightLong, 0, 1000,
+                Order.ASCENDING, 50, new Visitor<String, String>() {
+                    @Override
+                    public boolean visit(Info<String, String> info) {
+                        list.add(info);
+                        return info.time() < 200;
+                    }
+                });
+        assertEquals(21, count);
+        assertEquals(21, list.size());
+        assertEquals(200L, list.get(20).time());
+    }
+
+    private static Geomem<String, String> createGeomemWithSpreadOfTimes() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        // spread over many cells and add out of time order
+        for (int i = 99; i >= 0; i--) {
+            g.add(-10 - (i * 7 % 30), 110 + (i * 13 % 50), i * 10, "A" + i, "a" + i);
+        }
+        // outside the region
+        g.add(10, 120, 500, "B", "b");
+        return g;
+    }
+
+    @Test
+    public void testAggregateAgreesWithFind() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 2000; i++) {
+            addRandomEntry(g);
+        }
+        for (int hashLength = 1; hashLength <= 4; hashLength++) {
+            for (long finish : new long[] { 1000, 2000 }) {
+                Map<String, Long> expected = Maps.newTreeMap();
+                for (Info<String, String> info : g.find(topLeftLat, topLeftLong,
+                        bottomRightLat, bottomRightLong, 0, finish)) {
+                    String hash = GeoHash.encodeHash(info.lat(), info.lon(), hashLength);
+                    Long count = expected.get(hash);
+                    expected.put(hash, count == null ? 1 : count + 1);
+                }
+                Map<String, CellCount> counts = g.aggregate(topLeftLat, topLeftLong,
+                        bottomRightLat, bottomRightLong, 0, finish, hashLength);
+                Map<String, Long> actual = Maps.newTreeMap();
+                for (CellCount c : counts.values()) {
+                    actual.put(c.hash(), c.count());
+                    assertTrue(c.minTime() <= c.maxTime());
+                }
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testAggregateMinAndMaxTime() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 500, "A1", "a1");
+        g.add(-15.001, 120.001, 300, "A2", "a2");
+        g.add(-15.001, 120.001, 3000, "A3", "a3");
+        Map<String, CellCount> counts = g.aggregate(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 1000, 3);
+        assertEquals(1, counts.size());
+        CellCount c = counts.values().iterator().next();
+        assertEquals(2, c.count());
+        assertEquals(300L, c.minTime());
+        assertEquals(500L, c.maxTime());
+        assertTrue(g.aggregate(topLeftLat, topLeftLong, bottomRightLat, bottomRightLong, 0, 100,
+                3).isEmpty());
+    }
+
+    @Test
+    public void testEstimateCount() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        assertEquals(0, g.estimateCount(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 1000));
+        long hour = 3600000;
+        Random r = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            g.add(-10 - r.nextDouble() * 40, 90 + r.nextDouble() * 90,
+                    Math.round(r.nextDouble() * 10 * hour), "A" + i, "a" + i);
+        }
+        assertEstimateClose(g, topLeftLat, topLeftLong, bottomRightLat, bottomRightLong, 0,
+                10 * hour);
+        assertEstimateClose(g, topLeftLat, topLeftLong, bottomRightLat, bottomRightLong,
+                2 * hour, 7 * hour);
+        assertEstimateClose(g, -20, 120, -30, 130, 0, 10 * hour);
+        assertEquals(0, g.estimateCount(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 20 * hour, 30 * hour));
+    }
+
+    private static void assertEstimateClose(Geomem<String, String> g, double topLeftLat,
+            double topLeftLon, double bottomRightLat, double bottomRightLon, long start,
+            long finish) {
+        long actual = Lists.newArrayList(
+                g.find(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon, start, finish))
+                .size();
+        long estimate = g.estimateCount(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon,
+                start, finish);
+        assertTrue(Math.abs(estimate - actual) <= actual * 0.2,
+                "estimate=" + estimate + ", actual=" + actual);
+    }
+
+    @Test
+    public void testFindWholeWorld() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 500, "A1", "a1");
+        g.add(60, -10, 500, "B1", "b1");
+        assertEquals(2, Lists.newArrayList(g.find(90, -180, -90, 180, 0, 1000)).size());
+    }
+
+    @Test
+    public void testHashAgreesWithGeoHash() {
+        Random r = new Random(1);
+        List<double[]> points = Lists.newArrayList(new double[] { 0, 0 },
+                new double[] { 90, 180 }, new double[] { -90, -180 },
+                new double[] { 45, 190 }, new double[] { -45, -540 });
+        for (int i = 0; i < 10000; i++)
+            points.add(new double[] { r.nextDouble() * 180 - 90, r.nextDouble() * 720 - 360 });
+        for (double[] p : points)
+            assertEquals(Base32.decodeBase32(GeoHash.encodeHash(p[0], p[1])),
+                    Geomem.hash(p[0], p[1]));
+    }
+
+    @Test
+    public void testAddAllAgreesWithAdd() {
+        Random r = new Random(2);
+        List<Info<String, String>> list = Lists.newArrayList();
+        for (int i = 0; i < 20000; i++)
+            list.add(new Info<String, String>(r.nextDouble() * 40 - 20,
+                    r.nextDouble() * 40 + 110, r.nextInt(500), "A" + i,
+                    i % 10 == 0 ? Optional.<String> absent() : Optional.of("a" + r.nextInt(50))));
+        Geomem<String, String> g1 = new Geomem<String, String>();
+        for (Info<String, String> info : list)
+            g1.add(info);
+        Geomem<String, String> g2 = new Geomem<String, String>();
+        // second batch is loaded into existing cells
+        g2.addAll(list.subList(0, 5000));
+        g2.addAll(list.subList(5000, list.size()));
+        double[][] boxes = { { 20, 110, -20, 150 }, { -1, 121, -3, 124 }, { 5, 100, -5, 115 } };
+        for (double[] b : boxes) {
+            assertEquals(values(g1.find(b[0], b[1], b[2], b[3], 100, 400)),
+                    values(g2.find(b[0], b[1], b[2], b[3], 100, 400)));
+            assertEquals(values(g1.find(b[0], b[1], b[2], b[3], 0, 500, Order.DESCENDING, 100)),
+                    values(g2.find(b[0], b[1], b[2], b[3], 0, 500, Order.DESCENDING, 100)));
+            assertEquals(g1.aggregate(b[0], b[1], b[2], b[3], 0, 500, 3).keySet(),
+                    g2.aggregate(b[0], b[1], b[2], b[3], 0, 500, 3).keySet());
+            for (Entry<String, CellCount> entry : g1.aggregate(b[0], b[1], b[2], b[3], 0, 500, 3)
+                    .entrySet())
+                assertEquals(entry.getValue().count(), g2.aggregate(b[0], b[1], b[2], b[3], 0,
+                        500, 3).get(entry.getKey()).count());
+            assertEquals(g1.estimateCount(b[0], b[1], b[2], b[3], 0, 500),
+                    g2.estimateCount(b[0], b[1], b[2], b[3], 0, 500));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(values(g1.findTrack("a" + i, 0, 500)),
+                    values(g2.findTrack("a" + i, 0, 500)));
+            assertEquals(g1.findLatest("a" + i).get().value(),
+                    g2.findLatest("a" + i).get().value());
+        }
+    }
+
+    @Test
+    public void testAddAllFromColumns() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.addAll(new double[] { -15, -16 }, new double[] { 120, 121 }, new long[] { 500, 600 },
+                Lists.newArrayList("A1", "A2"), Lists.newArrayList("a", "a"));
+        assertEquals(Lists.newArrayList("A1", "A2"), values(g.findTrack("a", 0, 1000)));
+        assertEquals("A2", g.findLatest("a").get().value());
+    }
+
+    @Test
+    public void testFindParallelAgreesWithFind() throws InterruptedException {
+        Random r = new Random(3);
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 10000; i++)
+            g.add(r.nextDouble() * 40 - 20, r.nextDouble() * 40 + 110, r.nextInt(100), "A" + i,
+                    "a" + r.nextInt(10));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (Order order : Order.values()) {
+                List<String> expected = values(g.find(topLeftLat, topLeftLong, bottomRightLat,
+                        bottomRightLong, 10, 90, order, Integer.MAX_VALUE));
+                List<String> actual = values(g.find(topLeftLat, topLeftLong, bottomRightLat,
+                        bottomRightLong, 10, 90, order, executor));
+                if (order == Order.UNORDERED) {
+                    Collections.sort(expected);
+                    Collections.sort(actual);
+                }
+                assertFalse(expected.isEmpty());
+                assertEquals(expected, actual);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, g.find(topLeftLat, topLeftLong, bottomRightLat, bottomRightLong, 200,
+                300, Order.ASCENDING, ForkJoinPool.commonPool()).size());
+    }
+
+    @Test
+    public void testUpsertMovesId() {
+        Geomem<String, String> g = Geomem.<String, String> builder().upsert(true).build();
+        g.add(-15, 120, 100, "A1", "a");
+        // shares a long prefix with the previous position
+        g.add(-15.0001, 120.0001, 200, "A2", "a");
+        g.add(-30, 150, 300, "A3", "a");
+        // older than the current record so ignored
+        g.add(-15, 120, 250, "A4", "a");
+        g.add(-15, 120, 100, "X1", Optional.<String> absent());
+        g.add(-15, 120, 100, "X2", Optional.<String> absent());
+        assertEquals(Lists.newArrayList("A3", "X1", "X2"), sortedValues(
+                g.find(topLeftLat, topLeftLong, bottomRightLat, bottomRightLong, 0, 1000)));
+        assertEquals(Lists.newArrayList("X1", "X2"),
+                sortedValues(g.find(-14, 119, -16, 121, 0, 1000)));
+        assertEquals(Lists.newArrayList("A3"), values(g.findTrack("a", 0, 1000)));
+        assertEquals("A3", g.findLatest("a").get().value());
+        long count = 0;
+        for (CellCount c : g.aggregate(topLeftLat, topLeftLong, bottomRightLat, bottomRightLong,
+                0, 1000, 1).values())
+            count += c.count();
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void testUpsertAgreesWithStoreOfCurrentRecords() {
+        Random r = new Random(4);
+        Geomem<String, String> g = Geomem.<String, String> builder().upsert(true).build();
+        Map<String, Info<String, String>> current = Maps.newHashMap();
+        List<Info<String, String>> batch = Lists.newArrayList();
+        for (int i = 0; i < 5000; i++) {
+            String id = "a" + r.nextInt(50);
+            Info<String, String> previous = current.get(id);
+            // small moves mostly, sometimes a jump
+            double lat = previous == null || i % 7 == 0 ? r.nextDouble() * 40 - 40
+                    : previous.lat() + r.nextDouble() * 0.01;
+            double lon = previous == null || i % 7 == 0 ? r.nextDouble() * 60 + 105
+                    : previous.lon() + r.nextDouble() * 0.01;
+            Info<String, String> info = new Info<String, String>(lat, lon, i, "A" + i,
+                    Optional.of(id));
+            current.put(id, info);
+            if (i % 3 == 0)
+                batch.add(info);
+            else {
+                g.addAll(batch);
+                batch.clear();
+                g.add(info);
+            }
+        }
+        g.addAll(batch);
+        Geomem<String, String> expected = new Geomem<String, String>();
+        expected.addAll(current.values());
+        double[][] boxes = { { topLeftLat, topLeftLong, bottomRightLat, bottomRightLong },
+                { -10, 110, -20, 130 } };
+        for (double[] b : boxes) {
+            assertEquals(sortedValues(expected.find(b[0], b[1], b[2], b[3], 0, 5000)),
+                    sortedValues(g.find(b[0], b[1], b[2], b[3], 0, 5000)));
+            assertEquals(sortedValues(expected.findLatest(b[0], b[1], b[2], b[3])),
+                    sortedValues(g.findLatest(b[0], b[1], b[2], b[3])));
+            Map<String, CellCount> expectedCounts = expected.aggregate(b[0], b[1], b[2], b[3], 0,
+                    5000, 4);
+            Map<String, CellCount> counts = g.aggregate(b[0], b[1], b[2], b[3], 0, 5000, 4);
+            for (Entry<String, CellCount> entry : expectedCounts.entrySet())
+                assertEquals(entry.getValue().count(), counts.get(entry.getKey()).count());
+        }
+    }
+
+    @Test
+    public void testConcurrentUpsertsOfSharedIdsKeepTheLatestRecord()
+            throws InterruptedException {
+        final Geomem<String, String> g = Geomem.<String, String> builder().upsert(true)
+                .build();
+        final int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Random r = new Random(thread);
+                    for (int i = 0; i < 2000; i++)
+                        // times are distinct across threads
+                        g.add(-10 - r.nextDouble() * 20, 110 + r.nextDouble() * 30,
+                                i * threads + thread, "A" + (i * threads + thread),
+                                "a" + i % 20);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        // the record with the latest time of each id is current
+        List<String> expected = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            int last = (2000 - 20 + i) * threads + threads - 1;
+            expected.add("A" + last);
+            assertEquals("A" + last, g.findLatest("a" + i).get().value());
+        }
+        Collections.sort(expected);
+        assertEquals(expected, sortedValues(g.find(-5, 100, -45, 170, 0, 10000)));
+        assertEquals(expected, sortedValues(g.findLatest(-5, 100, -45, 170)));
+    }
+
+    @Test
+    public void testCompactThinsOldRecordsByTier() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        // every 10s for 3 hours
+        for (int i = 0; i < 1080; i++)
+            g.add(-15 - i * 0.001, 120, i * 10000L, "A" + i, "a");
+        g.add(-15, 120, 0, "X", Optional.<String> absent());
+        long hour = 3600000;
+        List<CompactionTier> tiers = Lists.newArrayList(new CompactionTier(2 * hour, 600000),
+                new CompactionTier(hour, 60000));
+        long now = 3 * hour;
+        assertEquals(1080 - 426, g.compact(now, tiers));
+        assertEquals(6, Lists.newArrayList(g.findTrack("a", 0, hour)).size());
+        assertEquals(60, Lists.newArrayList(g.findTrack("a", hour, 2 * hour)).size());
+        assertEquals(360, Lists.newArrayList(g.findTrack("a", 2 * hour, 3 * hour)).size());
+        assertEquals(427, Lists.newArrayList(g.find(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 3 * hour)).size());
+        long count = 0;
+        for (CellCount c : g.aggregate(topLeftLat, topLeftLong, bottomRightLat, bottomRightLong,
+                0, 3 * hour, 3).values())
+            count += c.count();
+        assertEquals(427, count);
+        // the earliest record in each interval is kept
+        assertEquals("A60", Lists.newArrayList(g.findTrack("a", 0, hour)).get(1).value());
+        // nothing more to do until time passes
+        assertEquals(0, g.compact(now, tiers));
+        // 10 minutes pass tier 1 (5 removed per minute) and tier 2 (9 removed)
+        assertEquals(50 + 9, g.compact(now + 600000, tiers));
+        assertEquals("A1079", g.findLatest("a").get().value());
+    }
+
+    @Test
+    public void testCompactKeepsLatestRecord() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 1000, "A1", "a");
+        g.add(-15, 120, 2000, "A2", "a");
+        assertEquals(0, g.compact(1000000, Lists.newArrayList(new CompactionTier(0, 60000))));
+        assertEquals(2, Lists.newArrayList(g.findTrack("a", 0, 10000)).size());
+        g.add(-15, 120, 3000, "A3", "a");
+        g.add(-15, 120, 70000, "A4", "a");
+        // A3 is in an already compacted partition
+        assertEquals(0, g.compact(1000000, Lists.newArrayList(new CompactionTier(0, 60000))));
+    }
+
+    @Test
+    public void testMemoryUsageGrowsWithRecordsAndShrinksOnCompaction() {
+        Geomem<String, String> g = Geomem.<String, String> builder()
+                .payloadSizer(new Function<String, Integer>() {
+                    @Override
+                    public Integer apply(String s) {
+                        return 40 + 2 * s.length();
+                    }
+                }).build();
+        assertEquals(0, g.memoryUsage().totalBytes());
+        for (int i = 0; i < 100; i++)
+            g.add(-15, 120, i * 1000, "A" + i, "a");
+        MemoryUsage usage = g.memoryUsage();
+        assertEquals(100, usage.records());
+        assertTrue(usage.spatialIndexBytes() > 0);
+        assertTrue(usage.idIndexBytes() > 0);
+        assertTrue(usage.latestIndexBytes() > 0);
+        assertTrue(usage.recordBytes() > 100 * 40);
+        g.compact(1000000, Lists.newArrayList(new CompactionTier(0, 60000)));
+        MemoryUsage after = g.memoryUsage();
+        // the first record of each minute and the latest record
+        assertEquals(3, after.records());
+        assertTrue(after.totalBytes() < usage.totalBytes());
+    }
+
+    @Test
+    public void testMemoryBudgetRejectsAddsWhenExceeded() {
+        final Geomem<String, String> g = Geomem.<String, String> builder()
+                .memoryBudget(100000, OverBudgetPolicy.REJECT).build();
+        assertThrows(MemoryBudgetExceededException.class, new Executable() {
+            @Override
+            public void execute() {
+                for (int i = 0; i < 10000; i++)
+                    g.add(-15, 120, i, "A" + i, "a" + i);
+            }
+        });
+        long records = g.memoryUsage().records();
+        assertTrue(records > 0 && records < 10000);
+        assertThrows(MemoryBudgetExceededException.class, new Executable() {
+            @Override
+            public void execute() {
+                g.add(-15, 120, 20000, "B", "b");
+            }
+        });
+        assertEquals(records, g.memoryUsage().records());
+    }
+
+    @Test
+    public void testMemoryBudgetEvictsOldestRecords() {
+        Geomem<String, String> g = Geomem.<String, String> builder()
+                .memoryBudget(100000, OverBudgetPolicy.EVICT_OLDEST).build();
+        for (int i = 0; i < 1000; i++)
+            g.add(-15 + i % 10, 120, i, "A" + i, "a" + i % 20);
+        MemoryUsage usage = g.memoryUsage();
+        assertTrue(usage.totalBytes() <= 100000 + 64 * usage.totalBytes() / usage.records());
+        assertTrue(usage.records() < 1000);
+        List<Info<String, String>> list = Lists
+                .newArrayList(g.find(0, 100, -30, 140, 0, Long.MAX_VALUE));
+        assertEquals(usage.records(), list.size());
+        // the latest records were kept
+        assertTrue(values(list).contains("A999"));
+        assertFalse(values(list).contains("A0"));
+        assertFalse(g.findTrack("a0", 0, 1).iterator().hasNext());
+    }
+
+    @Test
+    public void testFindWithBudgetTruncatesAtMaxScanned() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 100; i++)
+            g.add(-15, 120 + (i % 2) * 0.1, i, "A" + i, "a");
+        QueryResult<String, String> all = g.find(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 1000, Order.ASCENDING, QueryBudget.unlimited());
+        assertFalse(all.isTruncated());
+        assertEquals(100, all.records().size());
+        assertEquals(100, all.scanned());
+        QueryResult<String, String> r = g.find(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 1000, Order.ASCENDING, QueryBudget.unlimited().maxScanned(10));
+        assertTrue(r.isTruncated());
+        assertEquals(10, r.scanned());
+        // the earliest records
+        assertEquals(all.records().subList(0, 10), r.records());
+        QueryResult<String, String> exact = g.find(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 1000, Order.UNORDERED, QueryBudget.unlimited().maxScanned(100));
+        assertFalse(exact.isTruncated());
+    }
+
+    @Test
+    public void testFindWithBudgetUsesCoarserCellsForMaxCells() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 100; i++)
+            g.add(-15 - i * 0.05, 120 + i * 0.05, i, "A" + i, "a" + i);
+        QueryResult<String, String> all = g.find(-14, 119, -20, 126, 0, 1000, Order.ASCENDING,
+                QueryBudget.unlimited());
+        QueryResult<String, String> r = g.find(-14, 119, -20, 126, 0, 1000, Order.ASCENDING,
+                QueryBudget.unlimited().maxCells(2));
+        assertTrue(r.cells() <= 2);
+        assertFalse(r.isTruncated());
+        assertEquals(values(all.records()), values(r.records()));
+        // a box needing more length 1 cells than allowed is truncated
+        QueryResult<String, String> world = g.find(90, -180, -90, 180, 0, 1000, Order.ASCENDING,
+                QueryBudget.unlimited().maxCells(1));
+        assertTrue(world.isTruncated());
+        assertEquals(1, world.cells());
+    }
+
+    @Test
+    public void testFindWithBudgetStopsAtDeadline() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 1000; i++)
+            g.add(-15, 120, i, "A" + i, "a");
+        QueryResult<String, String> r = g.find(topLeftLat, topLeftLong, bottomRightLat,
+                bottomRightLong, 0, 1000, Order.UNORDERED,
+                QueryBudget.unlimited().timeout(0, TimeUnit.MILLISECONDS));
+        assertTrue(r.isTruncated());
+        assertTrue(r.records().size() < 1000);
+    }
+
+    @Test
+    public void testFindAsyncAgreesWithFind() throws Exception {
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 100; i++)
+            g.add(-15 - i * 0.05, 120 + i * 0.05, i, "A" + i, "a" + i);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            QueryResult<String, String> r = g.findAsync(-14, 119, -20, 126, 0, 1000,
+                    Order.ASCENDING, QueryBudget.unlimited(), executor).get();
+            assertEquals(values(g.find(-14, 119, -20, 126, 0, 1000, Order.ASCENDING,
+                    QueryBudget.unlimited()).records()), values(r.records()));
+            assertEquals(100, r.records().size());
+            assertFalse(r.isTruncated());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFindAsyncCancelStopsScan() throws Exception {
+        StripedGeomemMetrics metrics = new StripedGeomemMetrics();
+        Geomem<String, String> g = Geomem.<String, String> builder().metrics(metrics).build();
+        int n = 200000;
+        List<Info<String, String>> list = Lists.newArrayList();
+        for (int i = 0; i < n; i++)
+            list.add(new Info<String, String>(-15, 120, i, "A", Optional.<String> absent()));
+        g.addAll(list);
+        final CountDownLatch started = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<QueryResult<String, String>> future = g.findAsync(topLeftLat,
+                    topLeftLong, bottomRightLat, bottomRightLong, 0, n, Order.ASCENDING,
+                    QueryBudget.unlimited(), new Executor() {
+                        @Override
+                        public void execute(final Runnable command) {
+                            executor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    started.countDown();
+                                    command.run();
+                                }
+                            });
+                        }
+                    });
+            started.await();
+            assertTrue(future.cancel(true));
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertTrue(metrics.recordsScanned() < n);
+    }
+
+    @Test
+    public void testFindPagesReturnsEachRecordOnce() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        Random r = new Random(7);
+        for (int i = 0; i < 1000; i++)
+            g.add(-10 - r.nextDouble() * 10, 115 + r.nextDouble() * 10, r.nextInt(500), "A" + i,
+                    "a" + i);
+        for (Order order : Order.values()) {
+            List<Info<String, String>> all = Lists.newArrayList(g.find(-12, 116, -18, 124, 100,
+                    400, order, Integer.MAX_VALUE));
+            List<Info<String, String>> paged = Lists.newArrayList();
+            Optional<String> token = Optional.absent();
+            int pages = 0;
+            do {
+                Page<String, String> page = g.findPage(-12, 116, -18, 124, 100, 400, order, 37,
+                        token);
+                assertTrue(page.records().size() <= 37);
+                paged.addAll(page.records());
+                token = page.nextToken();
+                pages++;
+            } while (token.isPresent());
+            assertTrue(pages > 1);
+            if (order == Order.UNORDERED)
+                assertEquals(sortedValues(all), sortedValues(paged));
+            else
+                assertEquals(values(all), values(paged));
+        }
+    }
+
+    @Test
+    public void testFindPageResumesAfterRecordsAdded() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        for (int i = 0; i < 10; i++)
+            g.add(-15, 120, i * 10, "A" + i, "a");
+        Page<String, String> page = g.findPage(-14, 119, -16, 121, 0, 1000, Order.ASCENDING, 5,
+                Optional.<String> absent());
+        assertEquals(Lists.newArrayList("A0", "A1", "A2", "A3", "A4"), values(page.records()));
+        // B is before the token so is not returned
+        g.add(-15, 120, 5, "B", "b");
+        g.add(-15, 120, 55, "C", "c");
+        page = g.findPage(-14, 119, -16, 121, 0, 1000, Order.ASCENDING, 5, page.nextToken());
+        assertEquals(Lists.newArrayList("A5", "C", "A6", "A7", "A8"), values(page.records()));
+        page = g.findPage(-14, 119, -16, 121, 0, 1000, Order.ASCENDING, 5, page.nextToken());
+        assertEquals(Lists.newArrayList("A9"), values(page.records()));
+        assertFalse(page.hasNext());
+    }
+
+    @Test
+    public void testFindPageRejectsInvalidToken() {
+        final Geomem<String, String> g = new Geomem<String, String>();
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                g.findPage(-14, 119, -16, 121, 0, 1000, Order.ASCENDING, 5, Optional.of("abc"));
+            }
+        });
+    }
+
+    private static List<String> sortedValues(Iterable<Info<String, String>> infos) {
+        List<String> list = values(infos);
+        Collections.sort(list);
+        return list;
+    }
+
+    private static List<String> values(Iterable<Info<String, String>> infos) {
+        List<String> list = Lists.newArrayList();
+        for (Info<String, String> info : infos)
+            list.add(info.value());
+        return list;
+    }
+
+    @Test
+    public void testFindPageAsyncCancelStopsScan() throws Exception {
+        for (Order order : new Order[] { Order.UNORDERED, Order.ASCENDING }) {
+            StripedGeomemMetrics metrics = new StripedGeomemMetrics();
+            Geomem<String, String> g = Geomem.<String, String> builder().metrics(metrics)
+                    .build();
+            final AtomicBoolean armed = new AtomicBoolean();
+            final CountDownLatch scanning = new CountDownLatch(1);
+            final CountDownLatch cancelled = new CountDownLatch(1);
+            // blocks the scan on its first record until the future is cancelled
+            Info<String, String> first = new Info<String, String>(-15, 120, 0, "A",
+                    Optional.<String> absent()) {
+                @Override
+                public double lat() {
+                    if (armed.get()) {
+                        scanning.countDown();
+                        try {
+                            cancelled.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return super.lat();
+                }
+            };
+            int n = 10000;
+            List<Info<String, String>> list = Lists.newArrayList(first);
+            for (int i = 1; i < n; i++)
+                list.add(new Info<String, String>(-15, 120, i, "A", Optional.<String> absent()));
+            g.addAll(list);
+            armed.set(true);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                CompletableFuture<Page<String, String>> future = g.findPageAsync(topLeftLat,
+                        topLeftLong, bottomRightLat, bottomRightLong, 0, n, order, n + 1,
+                        Optional.<String> absent(), executor);
+                scanning.await();
+                assertTrue(future.cancel(true));
+                cancelled.countDown();
+            } finally {
+                executor.shutdown();
+                assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            }
+            assertTrue(metrics.recordsScanned() <= 64);
+        }
+    }
+
     /**
      * Indicates 4.5MB per 1000 records. Thus one million entries needs 4500
      * entries.
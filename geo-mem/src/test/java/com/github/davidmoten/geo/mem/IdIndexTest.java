@@ -0,0 +1,68 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class IdIndexTest {
+
+    @Test
+    public void testCodesAreDense() {
+        IdIndex<String, String> index = new IdIndex<String, String>();
+        for (int i = 0; i < 3000; i++)
+            assertEquals(i, index.encode("a" + i));
+        assertEquals(5, index.encode("a5"));
+        assertEquals(3000, index.size());
+        assertEquals(2500, index.code("a2500"));
+        assertEquals("a2500", index.decode(2500));
+        assertEquals(-1, index.code("b"));
+    }
+
+    @Test
+    public void testTrackIsInKeyOrderWhenRecordsArriveLate() {
+        IdIndex<String, String> index = new IdIndex<String, String>();
+        long[] times = { 100, 300, 200, 50, 300, 400 };
+        for (int i = 0; i < times.length; i++)
+            index.add("a", new Key(times[i], i), info(times[i], "A" + i));
+        assertEquals(Lists.newArrayList("A3", "A0", "A2", "A1", "A4", "A5"),
+                values(index.find("a", 0, 1000)));
+        assertEquals(Lists.newArrayList("A2", "A1", "A4"), values(index.find("a", 150, 400)));
+        assertTrue(index.find("a", 500, 1000).isEmpty());
+        assertTrue(index.find("b", 0, 1000).isEmpty());
+    }
+
+    @Test
+    public void testTrackArraysAreAllocatedOnFirstRecordAndReleasedWhenEmpty() {
+        IdIndex<String, String> index = new IdIndex<String, String>();
+        index.encode("a");
+        assertEquals(0, index.slots());
+        for (int i = 0; i < 3; i++)
+            index.add("a", new Key(i * 100, i), info(i * 100, "A" + i));
+        assertEquals(4, index.slots());
+        for (int i = 0; i < 3; i++)
+            assertTrue(index.remove("a", new Key(i * 100, i)));
+        assertEquals(0, index.slots());
+        assertTrue(index.find("a", 0, 1000).isEmpty());
+        assertEquals(null, index.replace("a", new Key(500, 5), info(500, "A5")));
+        assertEquals(Lists.newArrayList("A5"), values(index.find("a", 0, 1000)));
+        assertEquals(2, index.slots());
+    }
+
+    private static Info<String, String> info(long time, String value) {
+        return new Info<String, String>(-15, 120, time, value, Optional.of("a"));
+    }
+
+    private static List<String> values(List<Info<String, String>> infos) {
+        List<String> list = Lists.newArrayList();
+        for (Info<String, String> info : infos)
+            list.add(info.value());
+        return list;
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class ShardedGeomemTest {
+
+    @Test
+    public void testShardedAgreesWithGeomem() {
+        for (int prefixLength = 1; prefixLength <= 2; prefixLength++) {
+            Random r = new Random(prefixLength);
+            Geomem<String, String> g = new Geomem<String, String>();
+            ShardedGeomem<String, String> s = new ShardedGeomem<String, String>(prefixLength);
+            List<Info<String, String>> batch = Lists.newArrayList();
+            for (int i = 0; i < 5000; i++) {
+                Info<String, String> info = new Info<String, String>(r.nextDouble() * 120 - 60,
+                        r.nextDouble() * 200 - 100, i, "A" + i,
+                        Optional.of("a" + r.nextInt(100)));
+                g.add(info);
+                if (i % 2 == 0)
+                    s.add(info);
+                else
+                    batch.add(info);
+            }
+            s.addAll(batch);
+            double[][] boxes = { { 60, -100, -60, 100 }, { -5, 10, -45, 80 },
+                    { 10.5, 20.3, 10.1, 20.5 }, { 90, -180, -90, 180 } };
+            for (double[] b : boxes) {
+                assertEquals(sorted(g.find(b[0], b[1], b[2], b[3], 1000, 4000)),
+                        sorted(s.find(b[0], b[1], b[2], b[3], 1000, 4000)));
+                assertEquals(times(g.find(b[0], b[1], b[2], b[3], 0, 5000, Order.DESCENDING, 50)),
+                        times(s.find(b[0], b[1], b[2], b[3], 0, 5000, Order.DESCENDING, 50)));
+                assertEquals(sorted(g.findLatest(b[0], b[1], b[2], b[3])),
+                        sorted(s.findLatest(b[0], b[1], b[2], b[3])));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(times(g.findTrack("a" + i, 0, 5000)),
+                        times(s.findTrack("a" + i, 0, 5000)));
+                assertEquals(g.findLatest("a" + i).get().time(),
+                        s.findLatest("a" + i).get().time());
+            }
+        }
+    }
+
+    @Test
+    public void testFindLatestWhenIdMovesToAnotherShard() {
+        ShardedGeomem<String, String> s = new ShardedGeomem<String, String>(1);
+        s.add(-15, 120, 100, "A1", "a");
+        s.add(50, -10, 200, "A2", "a");
+        assertTrue(Lists.newArrayList(s.findLatest(-5, 100, -45, 170)).isEmpty());
+        assertEquals("A2", Lists.newArrayList(s.findLatest(60, -20, 40, 0)).get(0).value());
+        assertEquals("A2", s.findLatest("a").get().value());
+    }
+
+    @Test
+    public void testIdMovingToAnotherShardIsNoLongerLatestInTheOldShard() {
+        ShardedGeomem<String, String> s = new ShardedGeomem<String, String>(1);
+        int first = shard(s, -15, 120);
+        int second = shard(s, 50, -10);
+        assertTrue(first != second);
+        s.add(-15, 120, 100, "A1", "a");
+        assertEquals("A1", s.shardAt(first).findLatest("a").get().value());
+        s.add(50, -10, 200, "A2", "a");
+        assertFalse(s.shardAt(first).findLatest("a").isPresent());
+        assertTrue(Lists.newArrayList(s.shardAt(first).findLatest(90, -180, -90, 180)).isEmpty());
+        assertEquals("A2", s.shardAt(second).findLatest("a").get().value());
+        // an older record in another shard is not the latest of that shard
+        s.add(-15, 120, 150, "A3", "a");
+        assertFalse(s.shardAt(first).findLatest("a").isPresent());
+        assertEquals("A2", s.findLatest("a").get().value());
+        // the records themselves stay in the shards
+        assertEquals(Lists.newArrayList(100L, 150L, 200L), times(s.findTrack("a", 0, 1000)));
+        assertTrue(Lists.newArrayList(s.findTrack("b", 0, 1000)).isEmpty());
+    }
+
+    @Test
+    public void testShardsAreBuiltFromTheBuilder() {
+        StripedGeomemMetrics metrics = new StripedGeomemMetrics();
+        ShardedGeomem<String, String> s = new ShardedGeomem<String, String>(1,
+                Geomem.<String, String> builder().metrics(metrics));
+        s.add(-15, 120, 100, "A1", "a");
+        s.add(50, -10, 200, "A2", "a");
+        assertEquals(2, metrics.recordsInserted());
+    }
+
+    @Test
+    public void testShardsCannotUpsert() {
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                new ShardedGeomem<String, String>(1,
+                        Geomem.<String, String> builder().upsert(true));
+            }
+        });
+    }
+
+    @Test
+    public void testSmallQueryUsesOneShard() {
+        ShardedGeomem<String, String> s = new ShardedGeomem<String, String>(2);
+        assertEquals(1024, s.shardCount());
+        assertEquals(1, s.shards(-10.1, 120.1, -10.2, 120.2).size());
+        assertEquals(1024, s.shards(90, -180, -90, 180).size());
+        assertTrue(s.shards(-89, -179, -90, -134).contains(0));
+        assertFalse(s.shards(-89, -179, -90, -134).contains(1023));
+    }
+
+    private static int shard(ShardedGeomem<String, String> s, double lat, double lon) {
+        return s.shards(lat, lon, lat, lon).iterator().next();
+    }
+
+    private static List<String> sorted(Iterable<Info<String, String>> infos) {
+        List<String> list = Lists.newArrayList();
+        for (Info<String, String> info : infos)
+            list.add(info.value());
+        Collections.sort(list);
+        return list;
+    }
+
+    private static List<Long> times(Iterable<Info<String, String>> infos) {
+        List<Long> list = Lists.newArrayList();
+        for (Info<String, String> info : infos)
+            list.add(info.time());
+        return list;
+    }
+
+}
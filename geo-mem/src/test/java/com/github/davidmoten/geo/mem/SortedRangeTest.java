@@ -0,0 +1,49 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.SortedMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class SortedRangeTest {
+
+    @Test
+    public void testViewsOfRange() {
+        // the batch is in descending time order
+        List<Info<String, String>> infos = Lists.newArrayList();
+        Key[] keys = new Key[5];
+        for (int i = 0; i < 5; i++) {
+            long time = (4 - i) * 100;
+            infos.add(new Info<String, String>(-15, 120, time, "T" + time, Optional.of("a")));
+            keys[i] = new Key(time, i);
+        }
+        int[] order = { 4, 3, 2, 1, 0 };
+        // positions 1 to 3 of order hold times 100, 200 and 300
+        SortedRange<String, String> range = new SortedRange<String, String>(infos, keys, order,
+                1, 4);
+        assertEquals(3, range.size());
+        assertEquals(new Key(100, 3), range.firstKey());
+        assertEquals(new Key(300, 1), range.lastKey());
+        assertEquals(Lists.newArrayList("T100", "T200", "T300"), values(range));
+        assertEquals(Lists.newArrayList("T100", "T200"), values(range.headMap(Key.first(300))));
+        assertEquals(Lists.newArrayList("T200", "T300"), values(range.tailMap(Key.first(150))));
+        assertEquals(Lists.newArrayList("T200"),
+                values(range.subMap(Key.first(200), Key.first(300))));
+        assertTrue(range.tailMap(Key.first(1000)).isEmpty());
+        assertTrue(range.headMap(Key.first(0)).isEmpty());
+    }
+
+    private static List<String> values(SortedMap<Key, Info<String, String>> map) {
+        List<String> list = Lists.newArrayList();
+        for (Info<String, String> info : map.values())
+            list.add(info.value());
+        return list;
+    }
+
+}
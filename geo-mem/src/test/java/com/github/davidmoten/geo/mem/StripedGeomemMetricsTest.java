@@ -0,0 +1,104 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class StripedGeomemMetricsTest {
+
+    @Test
+    public void testHistogramQuantiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.valueAtQuantile(0.5));
+        for (int i = 0; i < 99; i++)
+            h.record(100);
+        h.record(100000);
+        assertEquals(100, h.count());
+        assertEquals(99 * 100 + 100000, h.totalNanos());
+        assertEquals(128, h.valueAtQuantile(0.5));
+        assertEquals(128, h.valueAtQuantile(0.99));
+        assertEquals(131072, h.valueAtQuantile(1));
+        assertEquals(99, h.counts()[7]);
+    }
+
+    @Test
+    public void testRecordsInsertsAndQueries() {
+        StripedGeomemMetrics metrics = new StripedGeomemMetrics();
+        Geomem<String, String> g = Geomem.<String, String> builder().metrics(metrics).build();
+        g.add(-15, 120, 100, "A1", "a");
+        g.add(-15.5, 120.5, 200, "A2", "a");
+        g.addAll(Lists.newArrayList(new Info<String, String>(-30, 100, 300, "B1",
+                Optional.of("b")), new Info<String, String>(-15, 120, 400, "A3",
+                        Optional.of("a"))));
+        assertEquals(4, metrics.recordsInserted());
+        assertEquals(3, metrics.insertLatency().count());
+
+        // a lazy query is recorded when its results are exhausted
+        Iterable<Info<String, String>> it = g.find(-14, 119, -15.2, 121, 0, 1000);
+        assertEquals(0, metrics.queries());
+        List<Info<String, String>> list = Lists.newArrayList(it);
+        assertEquals(2, list.size());
+        assertEquals(1, metrics.queries());
+        assertEquals(2, metrics.recordsReturned());
+        assertTrue(metrics.recordsScanned() >= 2);
+        assertTrue(metrics.cells() >= 1);
+        assertTrue(metrics.selectivity() <= 1);
+
+        Lists.newArrayList(g.find(-14, 119, -16, 121, 0, 1000, Order.ASCENDING, 1));
+        assertEquals(2, metrics.queries());
+        assertEquals(3, metrics.recordsReturned());
+    }
+
+    @Test
+    public void testInterleavedIterationsCountTheirOwnScannedRecords() {
+        StripedGeomemMetrics metrics = new StripedGeomemMetrics();
+        Geomem<String, String> g = Geomem.<String, String> builder().metrics(metrics).build();
+        for (int i = 0; i < 10; i++)
+            g.add(-15, 120, i, "A" + i, "a");
+        Iterable<Info<String, String>> it = g.find(-14, 119, -16, 121, 0, 1000);
+        Iterator<Info<String, String>> first = it.iterator();
+        first.next();
+        // a second iteration of the same results while the first is running
+        assertEquals(10, Lists.newArrayList(it).size());
+        assertEquals(10, metrics.recordsScanned());
+        while (first.hasNext())
+            first.next();
+        assertEquals(2, metrics.queries());
+        assertEquals(20, metrics.recordsScanned());
+        assertEquals(20, metrics.recordsReturned());
+    }
+
+    @Test
+    public void testRecordsLockContention() throws InterruptedException {
+        StripedGeomemMetrics metrics = new StripedGeomemMetrics();
+        final IdIndex<String, String> index = new IdIndex<String, String>(metrics);
+        ReentrantLock lock = index.lock(index.encode("a"));
+        lock.lock();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                index.add("a", new Key(100, 0), new Info<String, String>(-15, 120, 100, "A1",
+                        Optional.of("a")));
+            }
+        });
+        try {
+            t.start();
+            while (!lock.hasQueuedThreads())
+                Thread.yield();
+        } finally {
+            lock.unlock();
+        }
+        t.join();
+        assertEquals(1, metrics.lockWaits().count());
+        assertEquals(1, index.find("a", 0, 1000).size());
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.davidmoten.geo.GeoHash;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+
+public class SubscriptionsTest {
+
+    @Test
+    public void testSubscriberReceivesRecordsAddedInBox() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        g.add(-15, 120, 100, "A0", "a");
+        TestSubscriber ts = new TestSubscriber();
+        g.subscribe(-5, 100, -45, 170, ts);
+        ts.subscription.request(Long.MAX_VALUE);
+        g.add(-15, 120, 200, "A1", "a");
+        g.add(10, 120, 200, "B1", "b");
+        g.add(-30, 160, 300, "C1", "c");
+        g.addAll(Lists.newArrayList(new Info<String, String>(-20, 130, 400, "D1", of("d")),
+                new Info<String, String>(20, 130, 400, "E1", of("e"))));
+        assertEquals(Lists.newArrayList("A1", "C1", "D1"), ts.values);
+        assertNull(ts.error);
+    }
+
+    @Test
+    public void testSubscriberWithIdFilter() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        TestSubscriber ts = new TestSubscriber();
+        g.subscribe(-5, 100, -45, 170, Optional.of("a"), ts);
+        ts.subscription.request(10);
+        g.add(-15, 120, 200, "A1", "a");
+        g.add(-15, 120, 200, "B1", "b");
+        g.add(-16, 121, 300, "A2", "a");
+        assertEquals(Lists.newArrayList("A1", "A2"), ts.values);
+    }
+
+    @Test
+    public void testRecordsAreBufferedUntilRequested() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        TestSubscriber ts = new TestSubscriber();
+        g.subscribe(-5, 100, -45, 170, ts);
+        g.add(-15, 120, 100, "A1", "a");
+        g.add(-15, 120, 200, "A2", "a");
+        g.add(-15, 120, 300, "A3", "a");
+        assertTrue(ts.values.isEmpty());
+        ts.subscription.request(2);
+        assertEquals(Lists.newArrayList("A1", "A2"), ts.values);
+        g.add(-15, 120, 400, "A4", "a");
+        ts.subscription.request(5);
+        assertEquals(Lists.newArrayList("A1", "A2", "A3", "A4"), ts.values);
+    }
+
+    @Test
+    public void testBufferOverflowFailsSubscription() {
+        Geomem<String, String> g = Geomem.<String, String> builder().subscriptionBufferSize(2)
+                .build();
+        TestSubscriber ts = new TestSubscriber();
+        g.subscribe(-5, 100, -45, 170, ts);
+        for (int i = 0; i < 3; i++)
+            g.add(-15, 120, i, "A" + i, "a");
+        assertTrue(ts.error instanceof IllegalStateException);
+        ts.subscription.request(10);
+        assertTrue(ts.values.isEmpty());
+    }
+
+    @Test
+    public void testCancelStopsDelivery() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        TestSubscriber ts = new TestSubscriber();
+        g.subscribe(-5, 100, -45, 170, ts);
+        ts.subscription.request(Long.MAX_VALUE);
+        g.add(-15, 120, 100, "A1", "a");
+        ts.subscription.cancel();
+        g.add(-15, 120, 200, "A2", "a");
+        assertEquals(Lists.newArrayList("A1"), ts.values);
+    }
+
+    @Test
+    public void testRequestMustBePositive() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        TestSubscriber ts = new TestSubscriber();
+        g.subscribe(-5, 100, -45, 170, ts);
+        ts.subscription.request(0);
+        assertTrue(ts.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testSubscribeWholeWorld() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        TestSubscriber ts = new TestSubscriber();
+        g.subscribe(90, -180, -90, 180, ts);
+        ts.subscription.request(Long.MAX_VALUE);
+        g.add(-15, 120, 100, "A1", "a");
+        g.add(60, -10, 100, "B1", "b");
+        assertEquals(Lists.newArrayList("A1", "B1"), ts.values);
+    }
+
+    @Test
+    public void testCancelInOnSubscribeRemovesSubscription() {
+        Subscriptions<String, String> subscriptions = new Subscriptions<String, String>(16);
+        TestSubscriber ts = new TestSubscriber() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.cancel();
+            }
+        };
+        long hash = Geomem.hash(-15, 120);
+        long[] keys = { Geomem.key(hash, GeoHash.MAX_HASH_LENGTH, 2) };
+        subscriptions.subscribe(keys, Predicates.<Info<String, String>> alwaysTrue(), ts);
+        assertEquals(0, subscriptions.size());
+        subscriptions.dispatch(new Info<String, String>(-15, 120, 100, "A1", of("a")), hash);
+        assertTrue(ts.values.isEmpty());
+    }
+
+    @Test
+    public void testRequestInOnSubscribeDeliversRecords() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        TestSubscriber ts = new TestSubscriber() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(1);
+            }
+        };
+        g.subscribe(-5, 100, -45, 170, ts);
+        g.add(-15, 120, 100, "A1", "a");
+        g.add(-15, 120, 200, "A2", "a");
+        assertEquals(Lists.newArrayList("A1"), ts.values);
+    }
+
+    @Test
+    public void testSubscriberThrowingInOnNextReceivesErrorAndIsCancelled() {
+        Geomem<String, String> g = new Geomem<String, String>();
+        final RuntimeException failure = new RuntimeException("boom");
+        TestSubscriber ts = new TestSubscriber() {
+            @Override
+            public void onNext(Info<String, String> item) {
+                super.onNext(item);
+                throw failure;
+            }
+        };
+        g.subscribe(-5, 100, -45, 170, ts);
+        ts.subscription.request(Long.MAX_VALUE);
+        g.add(-15, 120, 100, "A1", "a");
+        g.add(-15, 120, 200, "A2", "a");
+        assertEquals(Lists.newArrayList("A1"), ts.values);
+        assertSame(failure, ts.error);
+    }
+
+    private static Optional<String> of(String id) {
+        return Optional.of(id);
+    }
+
+    private static class TestSubscriber implements Subscriber<Info<String, String>> {
+
+        Subscription subscription;
+        final List<String> values = Lists.newArrayList();
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Info<String, String> item) {
+            values.add(item.value());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+    }
+
+}
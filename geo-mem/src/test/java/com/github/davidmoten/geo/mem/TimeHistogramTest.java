@@ -0,0 +1,48 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TimeHistogramTest {
+
+    @Test
+    public void testCountOfWholeBucketsAgreesWithBruteForce() {
+        long width = 10;
+        TimeHistogram h = new TimeHistogram(width);
+        Random r = new Random(11);
+        int n = 20000;
+        long[] times = new long[n];
+        for (int i = 0; i < n; i++) {
+            // spans more than the widest level so all levels are used
+            times[i] = r.nextInt(20000000) - 10000000;
+            h.add(times[i]);
+        }
+        for (int i = 0; i < 100; i++)
+            h.remove(times[i]);
+        for (int k = 0; k < 200; k++) {
+            long a = (r.nextInt(24000000) - 12000000) / width * width;
+            long b = (r.nextInt(24000000) - 12000000) / width * width;
+            long start = Math.min(a, b);
+            long finish = Math.max(a, b);
+            long expected = 0;
+            for (int i = 100; i < n; i++)
+                if (times[i] >= start && times[i] < finish)
+                    expected++;
+            assertEquals(expected, h.count(start, finish), 0.000001);
+        }
+    }
+
+    @Test
+    public void testCountOfPartialBucketIsProportional() {
+        TimeHistogram h = new TimeHistogram(100);
+        for (int i = 0; i < 10; i++)
+            h.add(1000 + i);
+        assertEquals(2.5, h.count(1025, 1050), 0.000001);
+        assertEquals(10, h.count(900, 1200), 0.000001);
+        assertEquals(0, h.count(1200, 1100), 0.000001);
+    }
+
+}
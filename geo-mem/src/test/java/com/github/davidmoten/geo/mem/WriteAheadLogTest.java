@@ -0,0 +1,170 @@
+package com.github.davidmoten.geo.mem;
+
+import static com.github.davidmoten.geo.mem.GeomemSnapshotTest.STRING_SERIALIZER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class WriteAheadLogTest {
+
+    @Test
+    public void testAppendSyncAndRead() throws IOException {
+        File file = File.createTempFile("geomem", ".wal");
+        try {
+            WriteAheadLog<String, String> wal = WriteAheadLog.open(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER, 1000);
+            wal.append(new Info<String, String>(-15, 120, 500, "A1", Optional.of("a")));
+            wal.append(new Info<String, String>(-16, 121, 400, "B1",
+                    Optional.<String> absent()));
+            wal.sync();
+            List<Info<String, String>> list = wal.read();
+            assertEquals(2, list.size());
+            assertEquals("A1", list.get(0).value());
+            assertEquals("a", list.get(0).id().get());
+            assertEquals(-15, list.get(0).lat(), 0.0000001);
+            assertEquals(120, list.get(0).lon(), 0.0000001);
+            assertEquals(500L, list.get(0).time());
+            assertEquals("B1", list.get(1).value());
+            assertFalse(list.get(1).id().isPresent());
+            wal.truncate();
+            assertTrue(wal.read().isEmpty());
+            wal.close();
+            // close is idempotent
+            wal.close();
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testCloseWritesBufferedRecordsAndReopenAppends() throws IOException {
+        File file = File.createTempFile("geomem", ".wal");
+        try {
+            WriteAheadLog<String, String> wal = WriteAheadLog.open(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER, 60000);
+            for (int i = 0; i < 10000; i++)
+                wal.append(new Info<String, String>(-15, 120, i, "A" + i, Optional.of("a")));
+            wal.close();
+            wal = WriteAheadLog.open(file, STRING_SERIALIZER, STRING_SERIALIZER, 60000);
+            wal.append(new Info<String, String>(-15, 120, 0, "B", Optional.of("b")));
+            wal.close();
+            List<Info<String, String>> list = WriteAheadLog.read(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER);
+            assertEquals(10001, list.size());
+            assertEquals("A9999", list.get(9999).value());
+            assertEquals("B", list.get(10000).value());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testTornRecordAtEndIsIgnored() throws IOException {
+        File file = File.createTempFile("geomem", ".wal");
+        try {
+            WriteAheadLog<String, String> wal = WriteAheadLog.open(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER, 1000);
+            wal.append(new Info<String, String>(-15, 120, 500, "A1", Optional.of("a")));
+            wal.append(new Info<String, String>(-15, 120, 600, "A2", Optional.of("a")));
+            wal.close();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(raf.length() - 3);
+            raf.close();
+            List<Info<String, String>> list = WriteAheadLog.read(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER);
+            assertEquals(1, list.size());
+            assertEquals("A1", list.get(0).value());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testAppendsAfterTornRecordAreReplayed() throws IOException {
+        File file = File.createTempFile("geomem", ".wal");
+        try {
+            WriteAheadLog<String, String> wal = WriteAheadLog.open(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER, 1000);
+            wal.append(new Info<String, String>(-15, 120, 500, "A1", Optional.of("a")));
+            wal.close();
+            long length = file.length();
+            // the start of a record cut short by a crash
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(length);
+            raf.writeInt(100);
+            raf.writeInt(12345);
+            raf.write(new byte[] { 1, 2, 3 });
+            raf.close();
+            wal = WriteAheadLog.open(file, STRING_SERIALIZER, STRING_SERIALIZER, 1000);
+            assertEquals(length, file.length());
+            wal.append(new Info<String, String>(-15, 120, 600, "A2", Optional.of("a")));
+            wal.close();
+            List<Info<String, String>> list = WriteAheadLog.read(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER);
+            assertEquals(2, list.size());
+            assertEquals("A1", list.get(0).value());
+            assertEquals("A2", list.get(1).value());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testAppendAfterCloseThrows() throws IOException {
+        File file = File.createTempFile("geomem", ".wal");
+        try {
+            final WriteAheadLog<String, String> wal = WriteAheadLog.open(file,
+                    STRING_SERIALIZER, STRING_SERIALIZER, 1000);
+            wal.close();
+            assertThrows(IllegalStateException.class, new Executable() {
+                @Override
+                public void execute() {
+                    wal.append(new Info<String, String>(-15, 120, 500, "A1", Optional.of("a")));
+                }
+            });
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testGeomemReplaysLogWhenBuilt() throws IOException {
+        File file = File.createTempFile("geomem", ".wal");
+        try {
+            WriteAheadLog<String, String> wal = WriteAheadLog.open(file, STRING_SERIALIZER,
+                    STRING_SERIALIZER, 10);
+            Geomem<String, String> g = Geomem.<String, String> builder().writeAheadLog(wal)
+                    .build();
+            g.add(-15, 120, 500, "A1", "a");
+            g.addAll(Lists.newArrayList(
+                    new Info<String, String>(-15, 120, 600, "A2", Optional.of("a")),
+                    new Info<String, String>(-16, 121, 600, "B1", Optional.of("b"))));
+            wal.close();
+
+            wal = WriteAheadLog.open(file, STRING_SERIALIZER, STRING_SERIALIZER, 10);
+            Geomem<String, String> g2 = Geomem.<String, String> builder().writeAheadLog(wal)
+                    .build();
+            assertEquals(3, Lists.newArrayList(g2.find(-5, 100, -45, 170, 0, 1000)).size());
+            assertEquals("A2", g2.findLatest("a").get().value());
+            // replay does not log the records again
+            wal.sync();
+            assertEquals(3, wal.read().size());
+            wal.close();
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+}
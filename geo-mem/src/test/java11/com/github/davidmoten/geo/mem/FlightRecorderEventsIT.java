@@ -0,0 +1,108 @@
+package com.github.davidmoten.geo.mem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Runs against the packaged multi-release jar (see the java11 profile) so that
+ * the Java 11 {@link FlightRecorderEvents} that emits events is used.
+ */
+public class FlightRecorderEventsIT {
+
+    private static final String COVERAGE = "com.github.davidmoten.geo.Coverage";
+    private static final String QUERY = "com.github.davidmoten.geo.mem.Query";
+    private static final String ADD = "com.github.davidmoten.geo.mem.Add";
+
+    @Test
+    public void testCoverageQueryAndAddEventsAreRecorded() throws IOException {
+        List<RecordedEvent> events;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Recording recording = new Recording();
+        try {
+            recording.enable(COVERAGE).withThreshold(Duration.ZERO);
+            recording.enable(QUERY).withThreshold(Duration.ZERO);
+            recording.enable(ADD).withThreshold(Duration.ZERO);
+            recording.start();
+            Geomem<String, String> g = new Geomem<String, String>();
+            g.add(-15, 120, 500, "A1", "a");
+            g.addAll(Lists.newArrayList(
+                    new Info<String, String>(-15.5, 120.5, 600, "A2", Optional.of("a")),
+                    new Info<String, String>(-16, 121, 700, "B1", Optional.of("b"))));
+            // lazy
+            assertEquals(3, Lists.newArrayList(g.find(-5, 100, -45, 170, 0, 1000)).size());
+            // eager
+            assertEquals(3,
+                    g.find(-5, 100, -45, 170, 0, 1000, Order.ASCENDING, executor).size());
+            recording.stop();
+            Path file = Files.createTempFile("geomem", ".jfr");
+            try {
+                recording.dump(file);
+                events = RecordingFile.readAllEvents(file);
+            } finally {
+                Files.delete(file);
+            }
+        } finally {
+            recording.close();
+            executor.shutdown();
+        }
+
+        List<RecordedEvent> adds = events(events, ADD);
+        assertEquals(2, adds.size());
+        assertEquals(1, adds.get(0).getInt("records"));
+        assertEquals(2, adds.get(1).getInt("records"));
+
+        // one event per query, none started and dropped
+        List<RecordedEvent> queries = events(events, QUERY);
+        assertEquals(2, queries.size());
+        for (RecordedEvent e : queries) {
+            assertEquals(-5, e.getDouble("topLeftLat"), 0.0);
+            assertEquals(100, e.getDouble("topLeftLon"), 0.0);
+            assertEquals(-45, e.getDouble("bottomRightLat"), 0.0);
+            assertEquals(170, e.getDouble("bottomRightLon"), 0.0);
+            assertEquals(Instant.ofEpochMilli(0), e.getInstant("start"));
+            assertEquals(Instant.ofEpochMilli(1000), e.getInstant("finish"));
+            assertTrue(e.getInt("cells") > 0);
+            assertEquals(3, e.getLong("scanned"));
+            assertEquals(3, e.getLong("returned"));
+        }
+
+        List<RecordedEvent> coverages = events(events, COVERAGE);
+        assertFalse(coverages.isEmpty());
+        for (RecordedEvent e : coverages) {
+            assertEquals(-5, e.getDouble("topLeftLat"), 0.0);
+            assertEquals(170, e.getDouble("bottomRightLon"), 0.0);
+            assertTrue(e.getInt("maxHashes") > 0);
+            assertTrue(e.getInt("hashLength") > 0);
+            assertTrue(e.getInt("hashes") > 0);
+            assertTrue(e.getDouble("ratio") >= 1);
+        }
+    }
+
+    private static List<RecordedEvent> events(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> list = Lists.newArrayList();
+        for (RecordedEvent e : events)
+            if (e.getEventType().getName().equals(name))
+                list.add(e);
+        return list;
+    }
+
+}
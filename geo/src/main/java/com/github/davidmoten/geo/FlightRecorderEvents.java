@@ -0,0 +1,47 @@
+package com.github.davidmoten.geo;
+
+/**
+ * Emits JDK Flight Recorder events. This Java 8 version does nothing. On Java
+ * 11 and later the version in META-INF/versions/11 of the multi-release jar
+ * is used instead, which emits the events when they are enabled in a
+ * recording.
+ */
+final class FlightRecorderEvents {
+
+    private FlightRecorderEvents() {
+        // prevent instantiation
+    }
+
+    /**
+     * Starts timing a bounding box coverage.
+     * 
+     * @return event to commit or null if the event is disabled
+     */
+    static Object beginCoverage() {
+        return null;
+    }
+
+    /**
+     * Commits the event started by {@link #beginCoverage()}.
+     * 
+     * @param event
+     *            event returned by {@link #beginCoverage()}
+     * @param topLeftLat
+     *            latitude of top left point (north west)
+     * @param topLeftLon
+     *            longitude of top left point (north west)
+     * @param bottomRightLat
+     *            latitude of bottom right point (south east)
+     * @param bottomRightLon
+     *            longitude of bottom right point (south east)
+     * @param maxHashes
+     *            maximum number of hashes
+     * @param coverage
+     *            coverage found, may be null
+     */
+    static void commitCoverage(Object event, double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, int maxHashes, Coverage coverage) {
+        // do nothing
+    }
+
+}
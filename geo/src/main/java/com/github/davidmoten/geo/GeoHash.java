@@ -574,6 +574,16 @@ public final class GeoHash {
      */
     public static Coverage coverBoundingBoxMaxHashes(double topLeftLat, final double topLeftLon,
             final double bottomRightLat, final double bottomRightLon, int maxHashes) {
+        Object event = FlightRecorderEvents.beginCoverage();
+        Coverage coverage = coverMaxHashes(topLeftLat, topLeftLon, bottomRightLat, bottomRightLon,
+                maxHashes);
+        FlightRecorderEvents.commitCoverage(event, topLeftLat, topLeftLon, bottomRightLat,
+                bottomRightLon, maxHashes, coverage);
+        return coverage;
+    }
+
+    private static Coverage coverMaxHashes(double topLeftLat, final double topLeftLon,
+            final double bottomRightLat, final double bottomRightLon, int maxHashes) {
         CoverageLongs coverage = null;
         int startLength = hashLengthToCoverBoundingBox(topLeftLat, topLeftLon, bottomRightLat,
                 bottomRightLon);
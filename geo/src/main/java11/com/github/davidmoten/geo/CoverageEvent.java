@@ -0,0 +1,46 @@
+package com.github.davidmoten.geo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for
+ * {@link GeoHash#coverBoundingBoxMaxHashes(double, double, double, double, int)}.
+ */
+@Name("com.github.davidmoten.geo.Coverage")
+@Label("Geohash Coverage")
+@Category("Geohash")
+@Description("Covering of a bounding box by geohashes")
+final class CoverageEvent extends Event {
+
+    @Label("Top Left Latitude")
+    double topLeftLat;
+
+    @Label("Top Left Longitude")
+    double topLeftLon;
+
+    @Label("Bottom Right Latitude")
+    double bottomRightLat;
+
+    @Label("Bottom Right Longitude")
+    double bottomRightLon;
+
+    @Label("Max Hashes")
+    int maxHashes;
+
+    @Label("Hash Length")
+    @Description("Length of the covering hashes, 0 if no coverage within max hashes")
+    int hashLength;
+
+    @Label("Hashes")
+    @Description("Number of covering hashes")
+    int hashes;
+
+    @Label("Ratio")
+    @Description("Area of the covering hashes divided by the area of the box")
+    double ratio;
+
+}
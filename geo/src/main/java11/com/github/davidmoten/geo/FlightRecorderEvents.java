@@ -0,0 +1,47 @@
+package com.github.davidmoten.geo;
+
+import jdk.jfr.EventType;
+
+/**
+ * Emits JDK Flight Recorder events. Replaces the Java 8 version (which does
+ * nothing) on Java 11 and later. When an event type is disabled no event is
+ * created so the cost is a check of a flag.
+ */
+final class FlightRecorderEvents {
+
+    private static final EventType COVERAGE = EventType.getEventType(CoverageEvent.class);
+
+    private FlightRecorderEvents() {
+        // prevent instantiation
+    }
+
+    static Object beginCoverage() {
+        if (!COVERAGE.isEnabled())
+            return null;
+        CoverageEvent event = new CoverageEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitCoverage(Object event, double topLeftLat, double topLeftLon,
+            double bottomRightLat, double bottomRightLon, int maxHashes, Coverage coverage) {
+        if (event == null)
+            return;
+        CoverageEvent e = (CoverageEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.topLeftLat = topLeftLat;
+            e.topLeftLon = topLeftLon;
+            e.bottomRightLat = bottomRightLat;
+            e.bottomRightLon = bottomRightLon;
+            e.maxHashes = maxHashes;
+            if (coverage != null) {
+                e.hashLength = coverage.getHashLength();
+                e.hashes = coverage.getHashes().size();
+                e.ratio = coverage.getRatio();
+            }
+            e.commit();
+        }
+    }
+
+}